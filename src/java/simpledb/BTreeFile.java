@@ -21,6 +21,7 @@ import simpledb.Predicate.Op;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final PageIO io;
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
@@ -35,6 +36,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.io = new PageIO(f);
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -78,63 +80,30 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
-
+		int size = id.pgcateg() == BTreePageId.ROOT_PTR ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize();
+		// the page parses the buffer, so it can be reused by the next read
+		byte pageBuf[] = PageIO.buffer(size);
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
+			io.read(pageBuf, size, offset(id));
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
-			else {
-				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
-				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
-				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
-				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
-				}
+			else if(id.pgcateg() == BTreePageId.INTERNAL) {
+				BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+				return p;
+			}
+			else if(id.pgcateg() == BTreePageId.LEAF) {
+				BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+				return p;
+			}
+			else { // id.pgcateg() == BTreePageId.HEADER
+				BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
+				return p;
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
@@ -145,18 +114,39 @@ public class BTreeFile implements DbFile {
 	 * @param page - the page to write to disk
 	 */
 	public void writePage(Page page) throws IOException {
-		BTreePageId id = (BTreePageId) page.getId();
-		
-		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
-		}
-		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+		io.write(page.getPageData(), offset((BTreePageId) page.getId()));
+	}
+
+	/**
+	 * Returns the offset of a page in the file: the root pointer page comes
+	 * first, followed by the other pages from page number 1 on.
+	 */
+	private static long offset(BTreePageId id) {
+		if(id.pgcateg() == BTreePageId.ROOT_PTR)
+			return 0;
+		return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber()-1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Read the pages of this file by copying them out of memory mappings of
+	 * the file instead of with read calls, or stop doing so; see
+	 * {@link PageIO}. Meant for read-mostly indexes.
+	 */
+	public void setMapped(boolean mapped) {
+		io.setMapped(mapped);
+	}
+
+	/** Return true if pages are read out of mappings of the file */
+	public boolean isMapped() {
+		return io.isMapped();
+	}
+
+	/** Close the file's channel; it is opened again when next used */
+	public void close() {
+		try {
+			io.close();
+		} catch (IOException ioe) {
+			// Ignore failures closing the file
 		}
 	}
 	
@@ -591,6 +581,9 @@ public class BTreeFile implements DbFile {
 		}
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			// the pages we modify are kept in dirtypages and handed back to the
+			// buffer pool when the operation completes, so none need stay pinned
+			Database.getBufferPool().unpinPage(tid, pid);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -1173,13 +1166,10 @@ public class BTreeFile implements DbFile {
 		synchronized(this) {
 			if(f.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				io.write(emptyRootPtrData, 0);
+				io.write(emptyLeafData, emptyRootPtrData.length);
 			}
 		}
 
@@ -1235,11 +1225,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				io.write(emptyData, f.length());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1270,10 +1257,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		io.write(BTreePage.createEmptyPageData(), offset(newPageId));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1439,6 +1423,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public void open() throws DbException, TransactionAbortedException, InterruptedException {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		Database.getBufferPool().unpinPage(tid, BTreeRootPtrPage.getId(f.getId()));
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
 		it = curp.iterator();
@@ -1463,6 +1448,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				Database.getBufferPool().unpinPage(tid, nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1524,6 +1510,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void open() throws DbException, TransactionAbortedException, InterruptedException {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		Database.getBufferPool().unpinPage(tid, BTreeRootPtrPage.getId(f.getId()));
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
@@ -1572,6 +1559,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				Database.getBufferPool().unpinPage(tid, nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1624,6 +1612,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 	public void open() throws DbException, TransactionAbortedException, InterruptedException {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		Database.getBufferPool().unpinPage(tid, BTreeRootPtrPage.getId(f.getId()));
 		BTreePageId root = rootPtr.getRootId();
 		curp = f.findLeafPageReverse(tid, root, Permissions.READ_ONLY, null);
 		it = curp.reverseIterator();
@@ -1648,6 +1637,7 @@ class BTreeFileReverseIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				Database.getBufferPool().unpinPage(tid, nextp);
 				it = curp.reverseIterator();
 				if (!it.hasNext())
 					it = null;
@@ -1711,6 +1701,7 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 	public void open() throws DbException, TransactionAbortedException, InterruptedException {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		Database.getBufferPool().unpinPage(tid, BTreeRootPtrPage.getId(f.getId()));
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
 				|| ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1759,6 +1750,7 @@ class BTreeReverseSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				Database.getBufferPool().unpinPage(tid, nextp);
 				it = curp.reverseIterator();
 			}
 		}
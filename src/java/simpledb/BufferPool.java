@@ -6,6 +6,11 @@ import java.security.cert.TrustAnchor;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -16,60 +21,377 @@ import java.util.concurrent.CountedCompleter;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The cached pages are split into partitions by {@link PageId#hashCode}.
+ * Each partition has its own page table, replacement policy and latch, so
+ * misses and evictions on different partitions do not contend. Only the
+ * total number of resident pages is shared. The pool can be resized while
+ * it runs (see {@link #resize}), by hand or by the auto-sizer, which
+ * follows the free heap of the JVM (see {@link #setAutoSize}).
+ * <p>
+ * By default the pool is NO STEAL / FORCE: pages dirtied by a running
+ * transaction stay in memory and are written when it commits. With
+ * {@link #setSteal} such pages may be written back early, by eviction or
+ * by the page cleaner, after their update record is forced to the log;
+ * their before image is kept so that an abort can undo the write. With
+ * {@link #setNoForce} a commit only logs the updates and the pages are
+ * written back later.
+ * <p>
+ * When a transaction reads the pages of a heap file in order, the pages
+ * that follow are read ahead into free frames by a small pool of I/O
+ * threads (see {@link #setReadAhead}). Scans of files larger than the
+ * pool (see {@link #setScanRingThreshold}) keep their pages in a small
+ * ring of their own instead of the partitions' replacement policies, so
+ * they do not push the rest of the working set out.
+ * <p>
+ * The ids of the resident pages can be saved to a file, most recently
+ * used first, once or periodically (see {@link #setWarmStartFile}), and
+ * read back in after a restart with {@link #warmStart}, so that the pool
+ * does not start cold.
+ * <p>
+ * A page returned by {@link #getPage} is pinned on behalf of the
+ * transaction until it calls {@link #unpinPage} or completes, and pinned
+ * pages are never evicted.
+ * <p>
+ * Hits, misses, evictions and the pages read and written per table are
+ * counted in {@link Database#getMetrics}.
  *
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    /** Bytes per page, including header. */
-    private ConcurrentHashMap<PageId,Page> id2pg;
-    private ConcurrentHashMap<PageId, Date> id2date;//¼bppageķʱ
+    /** One independently managed slice of the pool */
+    private static class Partition {
+        final ConcurrentHashMap<PageId,Page> id2pg=new ConcurrentHashMap<PageId,Page>();
+        volatile EvictionPolicy evictor;//滻ԣ¼pageķ
+        final ReentrantLock latch=new ReentrantLock();//롢𱾷pageʱ
+    }
+
+    private final Partition[] partitions;
+    private final AtomicInteger pageCount=new AtomicInteger();//bpеpage
+
+    private final LockManager lockManager;
+
+    private volatile boolean steal=false;//ܷдδŪpage
+    private volatile boolean noForce=false;//ύʱֻд־дdata page
+    //ǰдصpage޸ǰӣabortʱдش
+    private final ConcurrentHashMap<TransactionId,ConcurrentHashMap<PageId,Page>> stolenPages
+            =new ConcurrentHashMap<TransactionId,ConcurrentHashMap<PageId,Page>>();
+    //pinסpagepinʱһͷ
+    private final ConcurrentHashMap<PageId,Integer> pinCounts=new ConcurrentHashMap<PageId,Integer>();
+    private final ConcurrentHashMap<TransactionId,ConcurrentHashMap<PageId,Integer>> txnPins
+            =new ConcurrentHashMap<TransactionId,ConcurrentHashMap<PageId,Integer>>();
+    //дصpageд֮ǰ
+    private final Set<PageId> flushing=ConcurrentHashMap.newKeySet();
+    private volatile long cleanerInterval=0;
+    private volatile Thread cleaner=null;
+    //ԶС[autoMinPages,autoMaxPages]֮ѵĿб
+    private volatile int autoMinPages, autoMaxPages;
+    private volatile long autoSizeInterval=0;
+    private volatile Thread sizer=null;
+    //ڰפpage id浽warmStartFile
+    private volatile File warmStartFile=null;
+    private volatile long warmStartInterval=0;
+    private volatile Thread warmSaver=null;
+    //¼HeapFiletupleabortʱҳԭ
+    private volatile boolean recordLocking=false;
+    private final ConcurrentHashMap<TransactionId,List<RecordChange>> recordChanges
+            =new ConcurrentHashMap<TransactionId,List<RecordChange>>();
+
+    //նֻ񲻼ÿpageڿտʼʱύİ汾
+    //pageǰύݾbefore imageİ汾ύʱversions
+    private final Object versionLatch=new Object();
+    //ύţversionLatchʱ(΢)ʼ֮ǰʱдMVCC汾Ŷ
+    private long commitSeq=System.currentTimeMillis()*1000;
+    private final ConcurrentHashMap<TransactionId,Long> snapshots=new ConcurrentHashMap<TransactionId,Long>();
+    private final HashMap<PageId,ArrayList<PageVersion>> versions=new HashMap<PageId,ArrayList<PageVersion>>();
+    private int versionCount=0;
+    //MVCCдһζʱµĶͼɾ汾pagevacuum
+    private final ConcurrentHashMap<TransactionId,Long> readViews=new ConcurrentHashMap<TransactionId,Long>();
+    private final Set<PageId> deadPages=ConcurrentHashMap.newKeySet();
+    private volatile long vacuumInterval=0;
+    private volatile Thread vacuumer=null;
+
+    /** A committed image of a page, current for snapshots taken before until */
+    private static class PageVersion {
+        final long until;
+        final Page image;
+
+        PageVersion(long until, Page image) {
+            this.until=until;
+            this.image=image;
+        }
+    }
+
+    /** A tuple inserted or deleted under a record lock, to be undone on abort */
+    private static class RecordChange {
+        final RecordId rid;
+        final Tuple tuple;
+        final boolean inserted;
+
+        RecordChange(RecordId rid, Tuple tuple, boolean inserted) {
+            this.rid=rid;
+            this.tuple=tuple;
+            this.inserted=inserted;
+        }
+    }
+
+    /** Where a transaction is in a sequential scan of one file */
+    private static class SeqRun {
+        int last=-1;//ϴζҳ
+        int length=0;//˳˼ҳ
+        int prefetched=-1;//ѾԤҳ
+        boolean sized=false;//ǷѾļСҪҪring
+        ScanRing ring=null;
+    }
 
     /**
-     * ͨPageIdȷPageϵ1:shared 0:exclusive ûkey:û
-     * pageBufferPoolӦͬʱid2lock
-     */
-    private ConcurrentHashMap<PageId,Integer> pid2lock;
-    /**
-     * ͨTransactionIdȷһTransaction
+     * The frames recycled by a scan of a large file. Pages in a ring are
+     * not known to the replacement policy of their partition; they leave
+     * the pool when the ring wraps around, or join the policy if another
+     * transaction uses them.
      */
+    private static class ScanRing {
+        final TransactionId owner;
+        private final PageId[] slots;
+        private int next=0;
+
+        ScanRing(TransactionId owner, int size) {
+            this.owner=owner;
+            slots=new PageId[size];
+        }
+
+        /** The page the next add replaces */
+        synchronized PageId oldest() {
+            return slots[next];
+        }
 
-    private ConcurrentHashMap<TransactionId,HashSet<PageId>> tid2lock;
-    //ڼdeadlockĵȴ
-    private ConcurrentHashMap<TransactionId,PageId> want;
+        /** Put a page in the ring, returning the page it replaces */
+        synchronized PageId add(PageId pid) {
+            PageId old=slots[next];
+            slots[next]=pid;
+            next=(next+1)%slots.length;
+            return old;
+        }
+
+        synchronized PageId[] pages() {
+            return slots.clone();
+        }
+    }
+    //ringеpageԼĸring
+    private final ConcurrentHashMap<PageId,ScanRing> ringPages=new ConcurrentHashMap<PageId,ScanRing>();
+    private volatile double scanRingThreshold=DEFAULT_SCAN_RING_THRESHOLD;
 
-    private int maxPagenum;
+    //ͳϢMetrics
+    private final Metrics metrics=Database.getMetrics();
+    private final Metrics.Counter hits,misses,evictions,prefetched,ringRecycled,warmed,reclaimed;
+    //ÿд˶page
+    private final ConcurrentHashMap<Integer,Metrics.Counter> pagesRead=new ConcurrentHashMap<Integer,Metrics.Counter>();
+    private final ConcurrentHashMap<Integer,Metrics.Counter> pagesWritten=new ConcurrentHashMap<Integer,Metrics.Counter>();
+    //ÿÿļ˳
+    private final ConcurrentHashMap<TransactionId,HashMap<Integer,SeqRun>> seqRuns
+            =new ConcurrentHashMap<TransactionId,HashMap<Integer,SeqRun>>();
+    private volatile int readAhead=DEFAULT_READ_AHEAD;
+    //ύûԤawaitReadAhead
+    private final AtomicInteger readAheadPending=new AtomicInteger();
+    /** Number of threads doing read-ahead */
+    private static final int IO_THREADS=2;
+    /** I/O threads shared by all pools, so that resetting the pool does not leak threads */
+    private static final ExecutorService ioThreads=Executors.newFixedThreadPool(IO_THREADS, r -> {
+        Thread t=new Thread(r,"read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile int maxPagenum;
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
-    private int Policy=3;//1LRU 2MRU 3 ĬΪLRU
+    /** Eviction policies accepted by {@link #setPolicy} */
+    public static final int LRU = 1, MRU = 2, RANDOM = 3, CLOCK = 4, LRU_K = 5, TWO_Q = 6;
+    private int Policy=CLOCK;//ĬΪCLOCK
     
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    //ȡʱҪȴ
-    private final long SLEEP_INTERVAL;
-    private final long DeadLockDetectCount;
+    /** Default number of pages read ahead of a sequential scan */
+    public static final int DEFAULT_READ_AHEAD = 8;
+    /**
+     * Default size, as a fraction of the pool, above which a sequential
+     * scan of a file uses a ring
+     */
+    public static final double DEFAULT_SCAN_RING_THRESHOLD = 1.0;
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Most pages in the ring of a scan. A ring takes at most a quarter of
+     * the pool, and scans use none if that is too small for read-ahead.
+     */
+    public static final int SCAN_RING_PAGES = 32;
+    /** Smallest share of the pool worth giving a partition of its own */
+    public static final int MIN_PAGES_PER_PARTITION = 64;
+    /** The auto-sizer shrinks the pool when less of the heap than this is free */
+    public static final double AUTO_SIZE_LOW_FREE = 0.1;
+    /** The auto-sizer grows the pool when more of the heap than this is free */
+    public static final double AUTO_SIZE_HIGH_FREE = 0.4;
+    /**
+     * Creates a BufferPool that caches up to numPages pages, with one
+     * partition per processor as long as each gets at least
+     * MIN_PAGES_PER_PARTITION pages.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                numPages / MIN_PAGES_PER_PARTITION)));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages split into
+     * numPartitions partitions.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numPartitions number of partitions
+     */
+    public BufferPool(int numPages, int numPartitions) {
         // some code goes here
-        id2pg=new ConcurrentHashMap<PageId,Page>();
-        pid2lock=new ConcurrentHashMap<PageId,Integer>();
-        tid2lock=new ConcurrentHashMap<>();
-        id2date=new ConcurrentHashMap<>();
-        want=new ConcurrentHashMap<>();
+        if(numPartitions<1)
+            throw new IllegalArgumentException("need at least one partition");
+        lockManager=new LockManager();
         maxPagenum=numPages;
-        SLEEP_INTERVAL = 1;
-        DeadLockDetectCount=25;
+        partitions=new Partition[numPartitions];
+        for(int i=0;i<numPartitions;i++)
+        {
+            partitions[i]=new Partition();
+            partitions[i].evictor=newEvictionPolicy(Policy);
+        }
+        hits=metrics.counter("simpledb_bufferpool_hits_total","Page requests served from the pool");
+        misses=metrics.counter("simpledb_bufferpool_misses_total","Page requests that had to read the page");
+        evictions=metrics.counter("simpledb_bufferpool_evictions_total","Pages evicted to make room");
+        prefetched=metrics.counter("simpledb_bufferpool_prefetched_total","Pages read ahead of a sequential scan");
+        warmed=metrics.counter("simpledb_bufferpool_warm_start_pages_total","Pages read in by a warm start");
+        reclaimed=metrics.counter("simpledb_mvcc_versions_reclaimed_total",
+                "Deleted tuple versions removed by vacuum");
+        ringRecycled=metrics.counter("simpledb_bufferpool_ring_recycled_total",
+                "Pages dropped when the ring of a large scan wrapped around");
+        //gauge´bp
+        metrics.gauge("simpledb_bufferpool_capacity","Maximum number of pages in the pool",()->maxPagenum);
+        metrics.gauge("simpledb_bufferpool_pages","Pages in the pool",pageCount::get);
+        metrics.gauge("simpledb_bufferpool_dirty_pages","Dirty pages in the pool",this::countDirtyPages);
+        metrics.gauge("simpledb_bufferpool_ring_pages","Pages in the rings of large scans",ringPages::size);
+        metrics.gauge("simpledb_bufferpool_pinned_pages","Pages pinned by some transaction",pinCounts::size);
+        metrics.gauge("simpledb_bufferpool_page_versions","Old page versions kept for snapshot reads",
+                this::countVersions);
+    }
+
+    private long countVersions() {
+        synchronized(versionLatch)
+        {
+            return versionCount;
+        }
+    }
+
+    /** Count a page read from the file of a table */
+    private void countRead(int tableId) {
+        Metrics.Counter c=pagesRead.get(tableId);
+        if(c==null)
+            c=pagesRead.computeIfAbsent(tableId,t->metrics.counter("simpledb_file_pages_read_total",
+                    "table",Integer.toString(t),"Pages read from the file of a table"));
+        c.inc();
+    }
+
+    /** Count pages written to the file of a table */
+    private void countWrite(int tableId, int n) {
+        Metrics.Counter c=pagesWritten.get(tableId);
+        if(c==null)
+            c=pagesWritten.computeIfAbsent(tableId,t->metrics.counter("simpledb_file_pages_written_total",
+                    "table",Integer.toString(t),"Pages written to the file of a table"));
+        c.add(n);
+    }
+
+    private long countDirtyPages() {
+        long n=0;
+        for(Partition part : partitions)
+            for(Page pg : part.id2pg.values())
+                if(pg.isDirty()!=null)
+                    n++;
+        return n;
+    }
+
+    private Partition partitionFor(PageId pid) {
+        int h=pid.hashCode();
+        h^=(h>>>16);
+        return partitions[(h&0x7fffffff)%partitions.length];
+    }
+
+    /** Return the maximum number of pages in the pool */
+    public int getCapacity() {
+        return maxPagenum;
+    }
+
+    /**
+     * Change the maximum number of pages in the pool. Growing takes effect
+     * at once. Shrinking evicts pages until the pool fits; pages that
+     * cannot be evicted yet, because they are dirty or pinned, are evicted
+     * by later misses, which do not read a page in until the pool has a
+     * free frame again.
+     *
+     * @param pages the new maximum number of pages
+     * @throws DbException if a dirty page could not be written back
+     */
+    public synchronized void resize(int pages) throws DbException {
+        if(pages<1)
+            throw new IllegalArgumentException("need at least one page");
+        int old=maxPagenum;
+        maxPagenum=pages;
+        //2QĶгؽ
+        if(Policy==TWO_Q&&pages!=old)
+            setPolicy(TWO_Q);
+        //Ӹÿֻһlatchһֶ˾֮miss
+        int idle=0;
+        for(int i=0;pageCount.get()>maxPagenum&&idle<partitions.length;i++)
+        {
+            Partition part=partitions[i%partitions.length];
+            part.latch.lock();
+            try
+            {
+                if(evictPageFrom(part))
+                    idle=0;
+                else
+                    idle++;
+            }
+            finally
+            {
+                part.latch.unlock();
+            }
+        }
+    }
+
+    /** Return the number of partitions */
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
+    /** Return the number of pages currently cached in each partition */
+    public int[] getPartitionOccupancy() {
+        int[] occupancy=new int[partitions.length];
+        for(int i=0;i<partitions.length;i++)
+            occupancy[i]=partitions[i].id2pg.size();
+        return occupancy;
     }
     
     public static int getPageSize() {
       return pageSize;
     }
+
+    /** Off-heap frame arenas, one per page size (tests change the page size) */
+    private static final ConcurrentHashMap<Integer,FrameArena> arenas=new ConcurrentHashMap<>();
+
+    /**
+     * Return the arena that holds the bytes of pages of the current page size
+     */
+    public static FrameArena getFrameArena() {
+        FrameArena arena=arenas.get(pageSize);
+        return arena!=null?arena:arenas.computeIfAbsent(pageSize, FrameArena::new);
+    }
     
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
@@ -80,23 +402,6 @@ public class BufferPool {
     public static void resetPageSize() {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
-    /**
-     * жtidǷpid
-     */
-    public boolean ownLock(TransactionId tid,PageId pid)
-    {
-        //ǰtidhashsetûʼ
-        if(!tid2lock.containsKey(tid))
-        {
-            HashSet<PageId> hs=new HashSet<>();
-            tid2lock.put(tid,hs);
-            return false;
-        }
-        HashSet<PageId> hs=tid2lock.get(tid);
-        boolean a=hs.contains(pid);
-        return a;
-    }
-
     /**
      * ͬ
      * Retrieve the specified page with the associated permissions.
@@ -108,6 +413,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * The page is pinned for tid, and cannot be evicted until tid unpins it
+     * or completes.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -116,6 +424,9 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException, InterruptedException {
         // some code goes here
+        Long snapshot=tid==null?null:snapshots.get(tid);
+        if(snapshot!=null)
+            return getSnapshotPage(tid,pid,perm,snapshot);
         /**
          * :
          * һtransactionҪpageshared
@@ -123,251 +434,962 @@ public class BufferPool {
          * һtransactionһpagesharedΨһӵߣԽexclusive
          */
 
-        int needLock=-1;//жǷҪı־Ĭ-1ΪҪ0Ϊex1Ϊshared
-        boolean lockAllocated=false;//Ƿ뵽
-        //  ӵ Ҫһж
-        if(perm==Permissions.READ_ONLY&&!ownLock(tid,pid))
+        //ŶȴLockManageròʱֱ̻߳ͷ
+        lockManager.acquireLock(tid,pid,perm);
+        //pinס֮Ͳᱻ߳
+        pin(tid,pid);
+        try
+        {
+            return fetchPage(tid,pid);
+        }
+        catch (DbException|RuntimeException e)
+        {
+            unpinPage(tid,pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Like {@link #getPage}, but returns null instead of waiting if another
+     * transaction holds a conflicting lock on the page.
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException, InterruptedException {
+        if(tid==null||snapshots.containsKey(tid))
+            return getPage(tid,pid,perm);
+        if(!lockManager.tryAcquireLock(tid,pid,perm))
+            return null;
+        return getPageUnlocked(tid,pid);
+    }
+
+    /**
+     * Retrieve a page without locking it, to look at its physical state,
+     * such as its free space, that no transaction's result depends on. Read
+     * it under its latch, see {@link Page#getLatch}. The page is pinned as
+     * by {@link #getPage}.
+     */
+    public Page getPageUnlocked(TransactionId tid, PageId pid) throws DbException {
+        pin(tid,pid);
+        try
         {
-            //page
-            if(pid2lock.containsKey(pid))
+            return fetchPage(tid,pid);
+        }
+        catch (DbException|RuntimeException e)
+        {
+            unpinPage(tid,pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieve a page to insert or delete single tuples of under record
+     * locking. The page is only locked IX, so other transactions may be
+     * updating other tuples of it at the same time: changes must be made
+     * under the page's write latch, and only to tuples tid has locked
+     * with {@link #lockRecord}. The page is pinned as by {@link #getPage}.
+     */
+    public Page getPageForRecordUpdate(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, DbException, InterruptedException {
+        if(snapshots.containsKey(tid))
+            throw new DbException("transaction "+tid.getId()+" is read-only");
+        lockManager.acquireIntentionLock(tid,pid);
+        pin(tid,pid);
+        try
+        {
+            return fetchPage(tid,pid);
+        }
+        catch (DbException|RuntimeException e)
+        {
+            unpinPage(tid,pid);
+            throw e;
+        }
+    }
+
+    /**
+     * Make tid a read-only transaction that reads a snapshot of the
+     * database as of now. It takes no locks: {@link #getPage} hands it the
+     * version of each page that was committed when the snapshot was taken,
+     * so it neither waits for writers nor makes them wait. That version is
+     * not a copy but shared with other readers and with the pool, so it is
+     * read-only and callers must not modify it. Asking for a page
+     * READ_WRITE throws DbException.
+     * <p>
+     * Old versions are kept in memory for as long as a snapshot that may
+     * need them is open, so long snapshots cost memory under heavy writes.
+     * Must be called before tid reads anything.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        synchronized(versionLatch)
+        {
+            snapshots.put(tid,commitSeq);
+        }
+    }
+
+    /** Return true if tid is a read-only snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    private Page getSnapshotPage(TransactionId tid, PageId pid, Permissions perm, long snapshot)
+            throws DbException {
+        //صİ汾ǹģܸ
+        if(perm==Permissions.READ_WRITE)
+            throw new DbException("transaction "+tid.getId()+" is read-only");
+        //pinסȡ汾֮ǰpageᱻһʵ
+        pin(tid,pid);
+        try
+        {
+            Page pg=fetchPage(tid,pid);
+            synchronized(versionLatch)
             {
-                //pageshared
-                if(pid2lock.get(pid)>0)
-                    needLock=1;//shared
-                //pageexclusive
-                else
+                //֮ύһҳǸɰ汾ǿտ
+                ArrayList<PageVersion> vs=versions.get(pid);
+                if(vs!=null)
+                    for(PageVersion v : vs)
+                        if(v.until>snapshot)
+                            return v.image;
+                //STEALpage͵дѱٶǻûύ޸
+                for(ConcurrentHashMap<PageId,Page> stolen : stolenPages.values())
+                {
+                    Page before=stolen.get(pid);
+                    if(before!=null)
+                        return before;
+                }
+                return pg.getBeforeImage();
+            }
+        }
+        finally
+        {
+            unpinPage(tid,pid);
+        }
+    }
+
+    /**
+     * Retrieve a page of a versioned HeapFile for reading, without locking
+     * it: readers of versioned files pick the versions they may see
+     * themselves, see {@link HeapPage#iterator(TransactionId,long)}. The
+     * page is pinned as by {@link #getPage}.
+     */
+    public Page getVersionedPage(TransactionId tid, PageId pid) throws DbException {
+        return getPageUnlocked(tid,pid);
+    }
+
+    /**
+     * Return the commit sequence number tid reads versioned files as of:
+     * that of its snapshot, or else the latest one when it first asks
+     */
+    public long getReadView(TransactionId tid) {
+        Long view=snapshots.get(tid);
+        if(view==null)
+            view=readViews.get(tid);
+        if(view!=null)
+            return view;
+        synchronized(versionLatch)
+        {
+            return readViews.computeIfAbsent(tid,k->commitSeq);
+        }
+    }
+
+    /** Return the oldest read view any transaction may still read as of */
+    private long oldestReadView() {
+        synchronized(versionLatch)
+        {
+            long oldest=commitSeq;
+            for(long view : snapshots.values())
+                oldest=Math.min(oldest,view);
+            for(long view : readViews.values())
+                oldest=Math.min(oldest,view);
+            return oldest;
+        }
+    }
+
+    private static boolean isVersioned(PageId pid) {
+        DbFile table=Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return table instanceof HeapFile&&((HeapFile)table).isVersioned();
+    }
+
+    /**
+     * Return the pages tid changed, pinning those in the pool until tid
+     * completes, so that snapshot readers keep finding the instance whose
+     * before image is the last committed version. Pages of versioned files
+     * tid changed are read back in if they were evicted, to be stamped.
+     */
+    private Set<PageId> pinWrittenPages(TransactionId tid, Set<PageId> pids, Set<PageId> recPages)
+            throws IOException {
+        Set<PageId> written=new HashSet<PageId>();
+        ConcurrentHashMap<PageId,Page> stolen=stolenPages.get(tid);
+        List<RecordChange> changes=recordChanges.get(tid);
+        if(changes!=null)
+        {
+            synchronized(changes)
+            {
+                for(RecordChange c : changes)
+                    written.add(c.rid.getPageId());
+            }
+        }
+        for(PageId pid : pids)
+        {
+            if(recPages.contains(pid))
+                continue;
+            Page pg=partitionFor(pid).id2pg.get(pid);
+            if(pg!=null&&(tid.equals(pg.isDirty())||(stolen!=null&&stolen.containsKey(pid))))
+                written.add(pid);
+        }
+        for(Iterator<PageId> it=written.iterator();it.hasNext();)
+        {
+            PageId pid=it.next();
+            pin(tid,pid);
+            if(partitionFor(pid).id2pg.containsKey(pid))
+                continue;
+            if(isVersioned(pid))
+            {
+                try
                 {
-                    int count=0;
-                    //ֱpageû,lockAllocated
-                    while(!lockAllocated)
+                    fetchPage(tid,pid);
+                    continue;
+                }
+                catch (DbException e)
+                {
+                    unpinPage(tid,pid);
+                    throw new IOException("could not read "+pid+" back to commit it",e);
+                }
+            }
+            unpinPage(tid,pid);
+            it.remove();
+        }
+        return written;
+    }
+
+    /**
+     * Make the changes of a committing transaction the committed versions
+     * of its pages. The versions they replace are kept for the open
+     * snapshots, which all predate this commit.
+     * @return the pages of versioned files whose stamps were changed
+     */
+    private Set<PageId> publishCommit(TransactionId tid, Set<PageId> written, Set<PageId> pids,
+            Set<PageId> recPages) {
+        synchronized(versionLatch)
+        {
+            long seq=++commitSeq;
+            if(!snapshots.isEmpty())
+            {
+                for(PageId pid : written)
+                {
+                    //MVCC pageԼɰ汾
+                    Page pg=partitionFor(pid).id2pg.get(pid);
+                    if(pg==null||(pg instanceof HeapPage&&((HeapPage)pg).isVersioned()))
+                        continue;
+                    versions.computeIfAbsent(pid,k->new ArrayList<PageVersion>())
+                            .add(new PageVersion(seq,pg.getBeforeImage()));
+                    versionCount++;
+                }
+                //͵дpagebpУɰ汾͵дʱµbefore image
+                ConcurrentHashMap<PageId,Page> stolen=stolenPages.get(tid);
+                if(stolen!=null)
+                {
+                    for(Map.Entry<PageId,Page> e : stolen.entrySet())
                     {
-                        Thread.sleep(SLEEP_INTERVAL);
-                        //ǰ̳߳Իȡ,double checking
-                        //Ϳĸ߳ÿ
-                        synchronized (this){
-//                            //ѭĳֵжdeadlock
-//                            if(count>DeadLockDetectCount)
-//                            {
-//                                throw new TransactionAbortedException();
-//                            }
-                            //pageѽ
-                            if(!pid2lock.containsKey(pid))
-                            {
-                                lockAllocated=true;//ǰ̻߳
-                                pid2lock.put(pid,-1);//-1ռλʾpageû
-                            }
-                            else
-                            {
-                                want.put(tid,pid);
-                                if(count>DeadLockDetectCount)
-                                //һڵȴĳtid,tidҲڵȱˣж.˴tidΨһ
-                                //ܵЭֱֻӵȴ
-                                {
-                                    for(TransactionId temp :tid2lock.keySet())
-                                        if(!temp.equals(tid)&&tid2lock.get(temp).contains(pid)&&want.containsKey(temp)) {
-                                            System.out.println("kill from 1");
-                                            throw new TransactionAbortedException();
-                                        }
-                                }
-                            }
-                            count++;
-                        }
+                        PageId pid=e.getKey();
+                        if(written.contains(pid)||recPages.contains(pid)||isVersioned(pid))
+                            continue;
+                        versions.computeIfAbsent(pid,k->new ArrayList<PageVersion>())
+                                .add(new PageVersion(seq,e.getValue()));
+                        versionCount++;
                     }
-                    needLock=1;//shared
                 }
             }
-            //pageû
-            else
+            //ύݳΪµbefore image
+            for (PageId pid : pids)
             {
-                pid2lock.put(pid,-1);//-1ռλʾpageû
-                needLock=1;//shared
+                Page pg=partitionFor(pid).id2pg.get(pid);
+                if(pg!=null&&!recPages.contains(pid))
+                    pg.setBeforeImage();
             }
+            return commitRecords(tid,seq);
         }
+    }
 
-        if(perm==Permissions.READ_WRITE)
+    /**
+     * Add the tuples tid changed under record locks to the before images of
+     * their pages, leaving out the uncommitted changes of other transactions.
+     * On the pages of versioned files, the versions tid created and deleted
+     * are stamped with seq instead.
+     * @return the pages of versioned files that were stamped
+     */
+    private Set<PageId> commitRecords(TransactionId tid, long seq) {
+        Set<PageId> stamped=new HashSet<PageId>();
+        List<RecordChange> changes=recordChanges.get(tid);
+        if(changes==null)
+            return stamped;
+        LinkedHashMap<PageId,List<RecordChange>> byPage=new LinkedHashMap<PageId,List<RecordChange>>();
+        synchronized(changes)
         {
-            //tidӵжpagesharedҪһжϣexֱgetpage
-            if(ownLock(tid,pid)&&pid2lock.get(pid)>0)
+            for(RecordChange c : changes)
+                byPage.computeIfAbsent(c.rid.getPageId(),k->new ArrayList<RecordChange>()).add(c);
+        }
+        for(Map.Entry<PageId,List<RecordChange>> e : byPage.entrySet())
+        {
+            HeapPage pg=(HeapPage)partitionFor(e.getKey()).id2pg.get(e.getKey());
+            if(pg==null)
+                continue;
+            if(pg.isVersioned())
             {
-                int count=0;
-                //ΨһӵУֱΨһӵ
-                //ж̵߳ΨһӵУ
-                while(!lockAllocated)
+                pg.getLatch().writeLock().lock();
+                try
                 {
-                    Thread.sleep(SLEEP_INTERVAL);
-                    synchronized (this){
-//                        //ѭĳֵжdeadlock
-//                        if(count>DeadLockDetectCount)
-//                        {
-//                            throw new TransactionAbortedException();
-//                        }
-
-                        if(pid2lock.get(pid)==1)
+                    for(RecordChange c : e.getValue())
+                    {
+                        int slot=c.rid.getTupleNumber();
+                        if(c.inserted)
+                            pg.setXmin(slot,seq);
+                        else
                         {
-                            pid2lock.put(pid,0);//һ̫ҪΪ߳ᵼ
-                            lockAllocated=true;
+                            pg.setXmax(slot,seq);
+                            deadPages.add(pg.getId());
                         }
-                        else {
-                            want.put(tid,pid);//ȴ
-                            if(count>DeadLockDetectCount)//ѭټ
-                            {
-                                for(TransactionId id:want.keySet())
-                                {
-                                    //idӵжpidϣõpid˵
-                                    //idӦڵǰtid
-                                    if(!id.equals(tid)&&tid2lock.get(id).contains(pid)&&want.get(id).equals(pid))
-                                    {
-                                        System.out.println("kill from 2");
-                                        throw new TransactionAbortedException();
-                                    }
-
-                                }
-                            }
-                        }
-                        count++;
                     }
+                    pg.markDirty(true,tid);
+                }
+                finally
+                {
+                    pg.getLatch().writeLock().unlock();
                 }
-                needLock=0;//ex
+                pg.setBeforeImage();
+                stamped.add(pg.getId());
+                continue;
             }
-            //tidûжpage
-            if(!ownLock(tid,pid))
+            HeapPage image=pg.copyBeforeImage();
+            try
             {
-                int count=0;
-                //pageֱûûͲ
-                while(!lockAllocated)
+                for(RecordChange c : e.getValue())
                 {
-                    Thread.sleep(SLEEP_INTERVAL);
-                    synchronized (this){
-//                        //ѭĳֵжdeadlock
-//                        if(count>DeadLockDetectCount)
-//                        {
-//                            throw new TransactionAbortedException();
-//                        }
-                        if(!pid2lock.containsKey(pid))
-                        {
-                            lockAllocated=true;
-                            pid2lock.put(pid,0);//޸Ĺȷֻһ̻߳
-                        }
-                        else
-                        {
-                            want.put(tid,pid);
-                            if(count>DeadLockDetectCount)
-                            //һڵȴĳtid,tidҲڵȱˣж.˴tidΨһ
-                            //ܵЭֱֻӵȴ
-                            {
-                                for(TransactionId temp :tid2lock.keySet())
-                                    if(!temp.equals(tid)&&tid2lock.get(temp).contains(pid)&&want.containsKey(temp)) {
-                                        System.out.println("kill from 3");
-                                        throw new TransactionAbortedException();
-                                    }
-                            }
-                        }
-                        count++;
+                    if(c.inserted)
+                        image.insertTuple(c.tuple,c.rid.getTupleNumber());
+                    else
+                    {
+                        Tuple victim=new Tuple(c.tuple.getTupleDesc());
+                        victim.setRecordId(c.rid);
+                        image.deleteTuple(victim);
                     }
                 }
-                needLock=0;//ex
             }
+            catch (DbException ex)
+            {
+                //tidЩslotᷢ
+                throw new RuntimeException(ex);
+            }
+            pg.setBeforeImage(image);
         }
-        synchronized (this){
-            //shared
-            if(needLock==1)
+        return stamped;
+    }
+
+    /** Drop the page versions no open snapshot can need any more */
+    private void pruneVersions() {
+        synchronized(versionLatch)
+        {
+            long oldest=Long.MAX_VALUE;
+            for(long ts : snapshots.values())
+                oldest=Math.min(oldest,ts);
+            for(Iterator<ArrayList<PageVersion>> it=versions.values().iterator();it.hasNext();)
             {
-                //shared,1ʾһshared
-                if(pid2lock.get(pid)>0)//ΪʲôNullPointer?
-                    pid2lock.put(pid,pid2lock.get(pid)+1);
-                else
-                    pid2lock.put(pid, 1);
+                ArrayList<PageVersion> vs=it.next();
+                int n=0;
+                while(n<vs.size()&&vs.get(n).until<=oldest)
+                    n++;
+                vs.subList(0,n).clear();
+                versionCount-=n;
+                if(vs.isEmpty())
+                    it.remove();
             }
-            //ex
-            if(needLock==0)
+        }
+    }
+
+    /**
+     * Lock a record X for tid, waiting for it if wait is true
+     * @return false if wait is false and the record is locked by another transaction
+     */
+    public boolean lockRecord(TransactionId tid, RecordId rid, boolean wait)
+            throws TransactionAbortedException, InterruptedException {
+        return lockManager.acquireRecordLock(tid,rid,wait);
+    }
+
+    /**
+     * Note that tid inserted or deleted a tuple under a record lock, so that
+     * it is undone tuple by tuple if tid aborts
+     */
+    public void recordChanged(TransactionId tid, Tuple t, boolean inserted) {
+        recordChanges.computeIfAbsent(tid,k->Collections.synchronizedList(new ArrayList<RecordChange>()))
+                .add(new RecordChange(t.getRecordId(),t,inserted));
+    }
+
+    /**
+     * Return the pages tid updated under record locking, which other
+     * transactions may have changed too
+     */
+    private Set<PageId> recordPages(TransactionId tid) {
+        Set<PageId> pids=lockManager.getIntentionLockedPages(tid);
+        List<RecordChange> changes=recordChanges.get(tid);
+        if(changes!=null)
+        {
+            synchronized(changes)
             {
-                pid2lock.put(pid,0);
+                for(RecordChange c : changes)
+                    pids.add(c.rid.getPageId());
             }
-            HashSet<PageId> temp=tid2lock.get(tid);
-            temp.add(pid);
-            tid2lock.put(tid,temp);
         }
+        return pids;
+    }
+
+    /** Look up a page, reading it in on a miss; tid holds the lock on it */
+    private Page fetchPage(TransactionId tid, PageId pid) throws DbException {
+        //˳ɨʱڶһҳͬʱѺҳɨļʱpageŽring
+        ScanRing ring=null;
+        if(tid!=null&&pid instanceof HeapPageId)
+            ring=noteAccess(tid,(HeapPageId)pid);
 
         //getPage
-        if(id2pg.containsKey(pid))
+        Partition part=partitionFor(pid);
+        Page pg=part.id2pg.get(pid);
+        if(pg!=null)
         {
-            id2date.put(pid,new Date());
-            return id2pg.get(pid);
+            hits.inc();
+            pageAccessed(part,tid,pid);//ʱκζ
+            return pg;
         }
-        else
+        //Ȱringϵpageȥڳλøһҳ
+        if(ring!=null)
+            retire(ring,ring.oldest());
+        //߿ͬʱmissֻһ̰߳pageͬһpageʵ
+        //ֻҪסpageڵķ
+        PageId replaced=null;
+        part.latch.lock();
+        try
         {
-            if(id2pg.size()==maxPagenum)
+            pg=part.id2pg.get(pid);
+            if(pg==null)
+            {
+                //Ԥ߳Ҳռλãռһframeٶ
+                while(!reserveFrame())
+                {
+                    evictPage(part);
+                }
+                DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                try
+                {
+                    pg = table.readPage(pid);
+                }
+                catch (RuntimeException e)
+                {
+                    pageCount.decrementAndGet();
+                    throw e;
+                }
+                misses.inc();
+                countRead(pid.getTableId());
+                part.id2pg.put(pid, pg);
+                replaced=pageAdded(part,ring,pid);
+            }
+            else
             {
-                evictPage();
+                hits.inc();
+                pageAccessed(part,tid,pid);
             }
-            DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page newPage = table.readPage(pid);
-            id2pg.put(pid, newPage);
-            id2date.put(pid,new Date());//¼ǰҳʱ
-            return newPage;
         }
+        finally
+        {
+            part.latch.unlock();
+        }
+        if(replaced!=null)
+            retire(ring,replaced);
+        return pg;
+    }
+
+    private void pin(TransactionId tid, PageId pid) {
+        if(tid==null)
+            return;
+        ConcurrentHashMap<PageId,Integer> pins=txnPins.get(tid);
+        if(pins==null)
+            pins=txnPins.computeIfAbsent(tid,t->new ConcurrentHashMap<PageId,Integer>());
+        pins.merge(pid,1,Integer::sum);
+        pinCounts.merge(pid,1,Integer::sum);
+    }
+
+    /** Drop n pins of a page */
+    private void unpin(PageId pid, int n) {
+        pinCounts.computeIfPresent(pid,(k,c)->c>n?c-n:null);
+    }
+
+    /**
+     * Drop one of the pins tid holds on a page, taken by {@link #getPage}.
+     * Does nothing if tid has not pinned the page.
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        if(tid==null)
+            return;
+        ConcurrentHashMap<PageId,Integer> pins=txnPins.get(tid);
+        if(pins==null)
+            return;
+        boolean[] had={false};
+        pins.computeIfPresent(pid,(k,c)->{
+            had[0]=true;
+            return c>1?c-1:null;
+        });
+        if(had[0])
+            unpin(pid,1);
+    }
+
+    /** Return true if some transaction has pinned the page */
+    public boolean isPinned(PageId pid) {
+        return pinCounts.containsKey(pid);
     }
 
-    public boolean check(){
-        for(TransactionId tid:tid2lock.keySet()){
-            HashSet<PageId> hs = tid2lock.get(tid);
-            for(PageId id:hs) {
-                if(!pid2lock.containsKey(id))
-                    return true;
+    /**
+     * Tell the replacement state that a newly cached page was added, by the
+     * scan that owns ring if ring is not null. Called with the latch of the
+     * page's partition held.
+     * @return the page the ring had to give up for it, to be retired once
+     *         the latch is released
+     */
+    private PageId pageAdded(Partition part, ScanRing ring, PageId pid) {
+        if(ring==null)
+        {
+            part.evictor.pageAdded(pid);
+            return null;
+        }
+        ringPages.put(pid,ring);
+        return ring.add(pid);
+    }
+
+    /**
+     * Tell the replacement state that tid used a cached page. A page in the
+     * ring of another transaction's scan leaves the ring, since it is not
+     * only of use to that scan.
+     */
+    private void pageAccessed(Partition part, TransactionId tid, PageId pid) {
+        ScanRing ring=ringPages.isEmpty()?null:ringPages.get(pid);
+        if(ring==null)
+        {
+            part.evictor.pageAccessed(pid);
+            return;
+        }
+        if(ring.owner.equals(tid))
+            return;
+        part.latch.lock();
+        try
+        {
+            if(ringPages.remove(pid,ring)&&part.id2pg.containsKey(pid))
+                part.evictor.pageAdded(pid);
+        }
+        finally
+        {
+            part.latch.unlock();
+        }
+    }
+
+    /**
+     * Take a page out of a ring: it leaves the pool if clean, and is left
+     * to the replacement policy otherwise. Must not be called with a
+     * partition latch held.
+     */
+    private void retire(ScanRing ring, PageId pid) {
+        if(pid==null||!ringPages.remove(pid,ring))
+            return;//Ѿring
+        Partition part=partitionFor(pid);
+        part.latch.lock();
+        try
+        {
+            Page pg=part.id2pg.get(pid);
+            if(pg==null)
+                return;
+            if(pg.isDirty()==null&&!flushing.contains(pid)&&!isPinned(pid))
+            {
+                part.id2pg.remove(pid);
+                pageCount.decrementAndGet();
+                ringRecycled.inc();
             }
+            else
+                part.evictor.pageAdded(pid);
+        }
+        finally
+        {
+            part.latch.unlock();
         }
-        return false;
     }
 
     /**
-     * Releases the lock on a page.
-     * Calling this is very risky, and may result in wrong behavior. Think hard
-     * about who needs to call this and why, and why they can run the risk of
-     * calling it.
+     * Track the pages a transaction reads from a heap file, and once it has
+     * read two in a row, have the next readAhead pages prefetched. A new
+     * batch is started when half of the previous one has been consumed.
+     * @return the ring the page goes into if this is a scan of a large
+     *         file, or null
+     */
+    private ScanRing noteAccess(TransactionId tid, HeapPageId pid) {
+        HashMap<Integer,SeqRun> runs=seqRuns.get(tid);
+        if(runs==null)
+            runs=seqRuns.computeIfAbsent(tid,t->new HashMap<Integer,SeqRun>());
+        int pgNo=pid.getPageNumber();
+        int from,to;
+        ScanRing ring;
+        synchronized(runs)
+        {
+            SeqRun run=runs.get(pid.getTableId());
+            if(run==null)
+            {
+                run=new SeqRun();
+                runs.put(pid.getTableId(),run);
+            }
+            if(pgNo==run.last)
+                return run.ring;
+            if(pgNo==run.last+1)
+                run.length++;
+            else
+            {
+                //˳¿ʼ
+                run.length=1;
+                run.prefetched=pgNo;
+            }
+            run.last=pgNo;
+            if(run.length>=2&&!run.sized)
+            {
+                //ȷ˳ɨſļСļֵring
+                run.sized=true;
+                //ringҪװԤҳԤҳòϾͱȥ
+                int ringSize=Math.min(SCAN_RING_PAGES,maxPagenum/4);
+                DbFile table=Database.getCatalog().getDatabaseFile(pid.getTableId());
+                if(ringSize>readAhead&&table instanceof HeapFile
+                        &&((HeapFile)table).numPages()>scanRingThreshold*maxPagenum)
+                    run.ring=new ScanRing(tid,ringSize);
+            }
+            ring=run.ring;
+            if(readAhead==0||run.length<2||run.prefetched-pgNo>readAhead/2)
+                return ring;
+            from=Math.max(run.prefetched,pgNo)+1;
+            to=pgNo+readAhead;
+            run.prefetched=to;
+        }
+        final int tableId=pid.getTableId(),first=from,last=to;
+        final ScanRing r=ring;
+        readAheadPending.incrementAndGet();
+        ioThreads.execute(() -> {
+            try
+            {
+                prefetch(tableId,first,last,r);
+            }
+            finally
+            {
+                if(readAheadPending.decrementAndGet()==0)
+                    synchronized(readAheadPending)
+                    {
+                        readAheadPending.notifyAll();
+                    }
+            }
+        });
+        return ring;
+    }
+
+    /**
+     * Read pages first..last of a heap file into free frames. Pages that
+     * are cached already, or that lie past the end of the file, are
+     * skipped, and nothing is evicted to make room, except from the ring
+     * of the scan if it has one.
+     */
+    private void prefetch(int tableId, int first, int last, ScanRing ring) {
+        try
+        {
+            DbFile table=Database.getCatalog().getDatabaseFile(tableId);
+            if(!(table instanceof HeapFile))
+                return;
+            last=Math.min(last,((HeapFile)table).numPages()-1);
+            for(int i=first;i<=last;i++)
+                if(!readIntoFreeFrame(table,new HeapPageId(tableId,i),ring,prefetched))
+                    return;
+        }
+        catch (RuntimeException e)
+        {
+            //ѾcatalogеԤֻŻ
+        }
+    }
+
+    /**
+     * Read a page of table into a free frame, unless it is cached already,
+     * and count it in counter
+     * @return false if the pool has no free frame
+     */
+    private boolean readIntoFreeFrame(DbFile table, PageId pid, ScanRing ring, Metrics.Counter counter) {
+        Partition part=partitionFor(pid);
+        if(part.id2pg.containsKey(pid))
+            return true;
+        if(ring!=null)
+            retire(ring,ring.oldest());
+        PageId replaced=null;
+        part.latch.lock();
+        try
+        {
+            if(part.id2pg.containsKey(pid))
+                return true;
+            //ֻÿеframe
+            if(!reserveFrame())
+                return false;
+            //missһڷlatchڶ̣дpageҲҪlatch
+            Page pg;
+            try
+            {
+                pg=table.readPage(pid);
+            }
+            catch (RuntimeException e)
+            {
+                pageCount.decrementAndGet();
+                throw e;
+            }
+            counter.inc();
+            countRead(pid.getTableId());
+            part.id2pg.put(pid,pg);
+            replaced=pageAdded(part,ring,pid);
+        }
+        finally
+        {
+            part.latch.unlock();
+        }
+        if(replaced!=null)
+            retire(ring,replaced);
+        return true;
+    }
+
+    /**
+     * Return the ids of the resident pages, most recently used first. The
+     * partitions only know the order of their own pages, so their lists
+     * are interleaved. Pages in the rings of scans are left out.
+     */
+    public List<PageId> getResidentPages() {
+        ArrayList<List<PageId>> lists=new ArrayList<List<PageId>>();
+        for(Partition part : partitions)
+            lists.add(part.evictor.pagesByRecency());
+        ArrayList<PageId> pages=new ArrayList<PageId>();
+        for(int i=0;pages.size()<pageCount.get();i++)
+        {
+            boolean any=false;
+            for(List<PageId> l : lists)
+            {
+                if(i<l.size())
+                {
+                    pages.add(l.get(i));
+                    any=true;
+                }
+            }
+            if(!any)
+                break;
+        }
+        return pages;
+    }
+
+    /**
+     * Save the ids of the resident pages to file, most recently used first.
+     * The file is replaced atomically. Each id is written as its class name
+     * followed by {@link PageId#serialize}, as in the log.
+     */
+    public void saveResidentPages(File file) throws IOException {
+        List<PageId> pages=getResidentPages();
+        File tmp=new File(file.getPath()+".tmp");
+        try(DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeInt(pages.size());
+            for(PageId pid : pages)
+            {
+                int[] info=pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(info.length);
+                for(int x : info)
+                    out.writeInt(x);
+            }
+        }
+        if(!tmp.renameTo(file))
+        {
+            file.delete();
+            if(!tmp.renameTo(file))
+                throw new IOException("could not replace "+file);
+        }
+    }
+
+    /** Read back the page ids written by {@link #saveResidentPages} */
+    private static List<PageId> readResidentPages(File file) throws IOException {
+        ArrayList<PageId> pages=new ArrayList<PageId>();
+        try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            int n=in.readInt();
+            for(int i=0;i<n;i++)
+            {
+                String idClassName=in.readUTF();
+                Object[] args=new Object[in.readInt()];
+                for(int j=0;j<args.length;j++)
+                    args[j]=in.readInt();
+                try
+                {
+                    //LogFileһù캯serializeĽָPageId
+                    for(java.lang.reflect.Constructor<?> c : Class.forName(idClassName).getDeclaredConstructors())
+                    {
+                        if(c.getParameterCount()==args.length)
+                        {
+                            pages.add((PageId)c.newInstance(args));
+                            break;
+                        }
+                    }
+                }
+                catch (ReflectiveOperationException|ClassCastException|IllegalArgumentException e)
+                {
+                    throw new IOException("bad page id in "+file+": "+idClassName);
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Start reading in the pages saved by {@link #saveResidentPages}, for
+     * after a restart once the catalog is loaded. As many of the most
+     * recently used pages as there are free frames are read in the
+     * background in file order; pages of tables that no longer exist, or
+     * that are past the end of their file, are skipped.
      *
-     * @param tid the ID of the transaction requesting the unlock
-     * @param pid the ID of the page to unlock
+     * @return a Future that completes when all the pages have been read
      */
-    public synchronized void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        //exֱremoveshared÷
+    public Future<?> warmStart(File file) throws IOException {
+        List<PageId> saved=readResidentPages(file);
+        int free=Math.max(0,maxPagenum-pageCount.get());
+        ArrayList<PageId> pages=new ArrayList<PageId>(saved.subList(0,Math.min(free,saved.size())));
+        //ļƫ򣬶̾˳
+        pages.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber));
+        return ioThreads.submit(() -> {
+            for(PageId pid : pages)
+            {
+                try
+                {
+                    DbFile table=Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    if(table instanceof HeapFile&&pid.getPageNumber()>=((HeapFile)table).numPages())
+                        continue;
+                    if(!readIntoFreeFrame(table,pid,null,warmed))
+                        return;
+                }
+                catch (RuntimeException e)
+                {
+                    //Ѿ˻pageڣ
+                }
+            }
+        });
+    }
 
-        //ȡtransactionӵе
-        HashSet<PageId> t_locks=tid2lock.get(tid);
-        Integer lockType=pid2lock.get(pid);
+    /**
+     * Save the ids of the resident pages to file every interval ms, or stop
+     * doing so if interval is 0
+     * @param interval (ms)0ʾر
+     */
+    public synchronized void setWarmStartFile(File file, long interval) {
+        if(interval<0)
+            throw new IllegalArgumentException("negative warm start interval");
+        warmStartFile=file;
+        warmStartInterval=interval;
+        if(warmSaver!=null)
+        {
+            warmSaver.interrupt();
+            warmSaver=null;
+        }
+        if(interval>0)
+        {
+            warmSaver=new Thread(this::runWarmSaver,"warm-start-saver");
+            warmSaver.setDaemon(true);
+            warmSaver.start();
+        }
+    }
 
-        int debug=0;
-        if(!pid2lock.containsKey(pid))//???
+    private void runWarmSaver() {
+        Thread self=Thread.currentThread();
+        while(warmSaver==self)
         {
-            //tidӵжԴpage
-            t_locks.remove(pid);
-            //tid
-            tid2lock.put(tid,t_locks);
-            return ;//֪Ϊʲô
-            //debug=1;//
+            try
+            {
+                Thread.sleep(warmStartInterval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            try
+            {
+                saveResidentPages(warmStartFile);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
         }
+    }
 
-        //shared
-        if(lockType>0)
+    /**
+     * Set how large a file has to be, as a fraction of the pool, for a
+     * sequential scan of it to use a ring
+     */
+    public void setScanRingThreshold(double fraction) {
+        if(fraction<0)
+            throw new IllegalArgumentException("negative scan ring threshold");
+        scanRingThreshold=fraction;
+    }
+
+    /**
+     * Take one of the free frames of the pool
+     * @return false if the pool is full
+     */
+    private boolean reserveFrame() {
+        int n;
+        do
         {
-            //ΨһӵУֱremove
-            if(lockType==1)
-                pid2lock.remove(pid);
-            //ΨһӵУԼһݼȥ
-            else
-                pid2lock.put(pid,lockType-1);
+            n=pageCount.get();
+            if(n>=maxPagenum)
+                return false;
+        } while(!pageCount.compareAndSet(n,n+1));
+        return true;
+    }
+
+    /**
+     * Set how many pages are read ahead of a sequential scan
+     * @param pages Ԥҳ0ʾر
+     */
+    public void setReadAhead(int pages) {
+        if(pages<0)
+            throw new IllegalArgumentException("negative read-ahead");
+        readAhead=pages;
+    }
+
+    /**
+     * Wait until the read-ahead started so far is done, or for at most
+     * timeout ms; for tests, which look at what was read
+     * @return false if it timed out
+     */
+    public boolean awaitReadAhead(long timeout) throws InterruptedException {
+        long deadline=System.currentTimeMillis()+timeout;
+        synchronized(readAheadPending)
+        {
+            while(readAheadPending.get()>0)
+            {
+                long left=deadline-System.currentTimeMillis();
+                if(left<=0)
+                    return false;
+                readAheadPending.wait(left);
+            }
         }
-        //exremove
-        else
-            pid2lock.remove(pid);
-        //tidӵжԴpage
-        t_locks.remove(pid);
-        //tid
-        tid2lock.put(tid,t_locks);
+        return true;
+    }
 
-        if(check())
-            debug=1;//
+    /**
+     * Releases the lock on a page.
+     * Calling this is very risky, and may result in wrong behavior. Think hard
+     * about who needs to call this and why, and why they can run the risk of
+     * calling it.
+     *
+     * @param tid the ID of the transaction requesting the unlock
+     * @param pid the ID of the page to unlock
+     */
+    public void releasePage(TransactionId tid, PageId pid) {
+        // some code goes here
+        // not necessary for lab1|lab2
+        lockManager.releaseLock(tid,pid);
     }
 
     /**
@@ -375,17 +1397,35 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      */
-    public synchronized void transactionComplete(TransactionId tid) throws IOException {
+    public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
         transactionComplete(tid,true);
     }
 
+    /**
+     * Return the pages tid may have read or written: those it holds page
+     * locks on, plus the pages it dirtied in tables it holds an X lock on,
+     * where it takes no page locks
+     */
+    private Set<PageId> touchedPages(TransactionId tid) {
+        Set<PageId> pids=lockManager.getLockedPages(tid);
+        Set<Integer> tables=lockManager.getExclusiveTables(tid);
+        if(!tables.isEmpty())
+        {
+            for(Partition part : partitions)
+                for(Page pg : part.id2pg.values())
+                    if(tables.contains(pg.getId().getTableId())&&tid.equals(pg.isDirty()))
+                        pids.add(pg.getId());
+        }
+        return pids;
+    }
+
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return ownLock(tid,p);
+        return lockManager.holdsLock(tid,p);
     }
 
     /**
@@ -395,42 +1435,165 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    public synchronized void transactionComplete(TransactionId tid, boolean commit)
+    public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        //tidӵκΪûκҳ棬ֱreturn
-        if(!tid2lock.containsKey(tid))
+        Set<PageId> t_locks=touchedPages(tid);
+        //¼¸Ĺpageϻб޸ģҳԭ
+        Set<PageId> recPages=recordPages(tid);
+        if(commit)
         {
-            return;
+            Set<PageId> written=pinWrittenPages(tid,t_locks,recPages);
+            if(!noForce)
+                flushPages(tid);
+            Set<PageId> stamped=publishCommit(tid,written,t_locks,recPages);
+            //MVCC汾ύflush֮Ÿϵ
+            if(!noForce&&!stamped.isEmpty())
+                flushPages(stamped,null,true);
         }
-        HashSet<PageId> t_locks= (HashSet<PageId>) tid2lock.get(tid).clone();
-        if(commit)
-            flushPages(tid);
         else
         {
             //иĸԭ
-            //transactionӵеpage
-            for (PageId pid : t_locks)
+            ConcurrentHashMap<PageId,Page> stolen=stolenPages.get(tid);
+            Set<PageId> pids=new HashSet<PageId>(t_locks);
+            if(stolen!=null)
+                pids.addAll(stolen.keySet());
+            pids.removeAll(recPages);
+            for (PageId pid : pids)
+                undoPage(tid,pid);
+            undoRecords(tid);
+        }
+        recordChanges.remove(tid);
+        readViews.remove(tid);
+        if(snapshots.remove(tid)!=null)
+            pruneVersions();
+        //ŵtidʣµpinٽ
+        ConcurrentHashMap<PageId,Integer> pins=txnPins.remove(tid);
+        if(pins!=null)
+            for(Map.Entry<PageId,Integer> e : pins.entrySet())
+                unpin(e.getKey(),e.getValue());
+        lockManager.releaseAllLocks(tid);
+        stolenPages.remove(tid);
+        HashMap<Integer,SeqRun> runs=seqRuns.remove(tid);
+        if(runs!=null)
+        {
+            //ɨringеpageҲҪ
+            ArrayList<ScanRing> rings=new ArrayList<ScanRing>();
+            synchronized(runs)
             {
-                //ҳĹ
-                //transactionӵеģһbp
-                if(id2pg.containsKey(pid)&&id2pg.get(pid).isDirty()!=null)
+                for(SeqRun run : runs.values())
+                    if(run.ring!=null)
+                        rings.add(run.ring);
+            }
+            for(ScanRing ring : rings)
+                for(PageId pid : ring.pages())
+                    retire(ring,pid);
+        }
+    }
+
+    /**
+     * Undo the tuples an aborting transaction inserted and deleted under
+     * record locks, newest first. It still holds the record locks, so the
+     * slots it freed are still free.
+     */
+    private void undoRecords(TransactionId tid) throws IOException {
+        List<RecordChange> changes=recordChanges.get(tid);
+        if(changes==null)
+            return;
+        for(int i=changes.size()-1;i>=0;i--)
+        {
+            RecordChange c=changes.get(i);
+            PageId pid=c.rid.getPageId();
+            pin(tid,pid);
+            try
+            {
+                HeapPage pg=(HeapPage)fetchPage(tid,pid);
+                pg.getLatch().writeLock().lock();
+                try
+                {
+                    if(c.inserted)
+                    {
+                        Tuple victim=new Tuple(c.tuple.getTupleDesc());
+                        victim.setRecordId(c.rid);
+                        pg.deleteTuple(victim);
+                        noteFreeSlot(pid);
+                    }
+                    else if(pg.isVersioned())
+                        pg.setXmax(c.rid.getTupleNumber(),0);//ɾİ汾pageϣȥɾ
+                    else
+                        pg.insertTuple(c.tuple,c.rid.getTupleNumber());
+                    pg.markDirty(true,tid);
+                }
+                finally
                 {
-                    //diskȡ
-                    DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                    Page newPage = table.readPage(pid);
-                    //bpеpage
-                    id2pg.put(pid,newPage);
+                    pg.getLatch().writeLock().unlock();
                 }
-
+            }
+            catch (DbException e)
+            {
+                throw new IOException("could not undo change to "+c.rid,e);
+            }
+            finally
+            {
+                unpinPage(tid,pid);
             }
         }
-        //
-        //ConcurrentModificationExceptionϷֿΪһ߱t_locksreleasePageٸt_locks
-        //t_locksͨgetõģֻһãgetĶclone쳣ʧ
-        for (PageId tLock : t_locks) releasePage(tid, tLock);
+    }
+
+    /** Tell the free-space map of a heap file that a page has a free slot again */
+    private static void noteFreeSlot(PageId pid) {
+        DbFile table=Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if(table instanceof HeapFile)
+            ((HeapFile)table).noteFreeSlot(pid.getPageNumber());
+    }
 
+    /**
+     * Undo the changes an aborting transaction made to a page, both in the
+     * pool and, if the page was stolen, on disk
+     */
+    private void undoPage(TransactionId tid, PageId pid) throws IOException {
+        Partition part=partitionFor(pid);
+        DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        part.latch.lock();
+        try
+        {
+            //ڷlatchڲ飬page cleaner͵дpageʱҲlatch
+            ConcurrentHashMap<PageId,Page> stolen=stolenPages.get(tid);
+            Page before=stolen==null?null:stolen.get(pid);
+            if(before!=null)
+            {
+                table.writePage(before);//͵дϵ޸
+                countWrite(pid.getTableId(),1);
+                //bulk appendҳabortǿҳ
+                if(before instanceof HeapPage&&((HeapPage)before).getNumEmptySlots()>0)
+                    noteFreeSlot(pid);
+            }
+            //transactionӵеģһbp
+            Page pg=part.id2pg.get(pid);
+            if(pg==null||(before==null&&!tid.equals(pg.isDirty())))
+                return;
+            Page restored;
+            if(before!=null||!noForce)
+            {
+                restored=table.readPage(pid);//Ͼ޸ǰ
+                countRead(pid.getTableId());
+            }
+            else
+            {
+                //NO FORCEʱϿܻûύ޸
+                restored=pg instanceof HeapPage?((HeapPage)pg).copyBeforeImage():pg.getBeforeImage();
+                restored.markDirty(true,tid);
+            }
+            //bpеpage
+            part.id2pg.put(pid,restored);
+            if(restored instanceof HeapPage&&((HeapPage)restored).getNumEmptySlots()>0)
+                noteFreeSlot(pid);
+        }
+        finally
+        {
+            part.latch.unlock();
+        }
     }
 
     /**
@@ -457,15 +1620,45 @@ public class BufferPool {
         //ɻΪʲôҪdirty pageŵcacheУ
         //BuffferPoolWriteTesthandleManyDirtyPagesҲ֣Ϊʲô弸
         //ҪǶpageӰ
+        boolean byRecord=table instanceof HeapFile&&(recordLocking||((HeapFile)table).isVersioned());
         pgs=table.insertTuple(tid,t);
-        //dirty pagecache,ʱ ǱforѭڸµĶpage dateͬ
-        //ʱӦҲҪ̫ȷ
+        //dirty pagecache,֪滻
         for(int i=0;i<pgs.size();i++)
+            cachePage(tid,pgs.get(i));
+        //¼pagecache֮ǰܱ𣬱Ѿڸ¶Ƿ
+        if(byRecord)
+            for(Page pg : pgs)
+                unpinPage(tid,pg.getId());
+    }
+
+    /**
+     * Write new pages that tid has filled itself to the end of a heap file,
+     * bypassing the pool; see {@link HeapFile#bulkAppend}. The pages are
+     * locked X for tid, their update records are logged and the log forced
+     * once, and they are written with {@link DbFile#writePages}. Like pages
+     * stolen from the pool, their empty before images are kept, and written
+     * back if tid aborts. The caller keeps other writers from extending the
+     * file meanwhile.
+     */
+    public void appendPages(TransactionId tid, HeapFile file, List<Page> pages)
+            throws IOException, TransactionAbortedException, InterruptedException {
+        if(pages.isEmpty())
+            return;
+        //ҳļĩβ֮⣬ûбǵ
+        for(Page pg : pages)
+            lockManager.acquireLock(tid,pg.getId(),Permissions.READ_WRITE);
+        LogFile log=Database.getLogFile();
+        ConcurrentHashMap<PageId,Page> stolen=
+                stolenPages.computeIfAbsent(tid,t->new ConcurrentHashMap<PageId,Page>());
+        for(Page pg : pages)
         {
-            PageId pid=pgs.get(i).getId();
-            id2pg.put(pid, pgs.get(i));
-            id2date.put(pid,new Date());
+            log.logWrite(tid,pg.getBeforeImage(),pg);
+            stolen.putIfAbsent(pg.getId(),pg.getBeforeImage());
         }
+        //WAL־̺дpage
+        log.force();
+        file.writePages(pages);
+        countWrite(file.getId(),pages.size());
     }
 
     /**
@@ -489,12 +1682,37 @@ public class BufferPool {
 
         int tableID=t.getRecordId().getPageId().getTableId();
         DbFile table = Database.getCatalog().getDatabaseFile(tableID);
+        boolean byRecord=table instanceof HeapFile&&(recordLocking||((HeapFile)table).isVersioned());
         pgs=table.deleteTuple(tid,t);
         for(int i=0;i<pgs.size();i++)
+            cachePage(tid,pgs.get(i));
+        if(byRecord)
+            for(Page pg : pgs)
+                unpinPage(tid,pg.getId());
+    }
+
+    /**
+     * Mark a page updated by an operator dirty and put it into the cache
+     */
+    private void cachePage(TransactionId tid, Page pg) {
+        //BTreeFileԼdirtyĹpageܱclean page
+        pg.markDirty(true,tid);
+        PageId pid=pg.getId();
+        Partition part=partitionFor(pid);
+        part.latch.lock();
+        try
+        {
+            if(part.id2pg.put(pid,pg)==null)
+            {
+                pageCount.incrementAndGet();
+                part.evictor.pageAdded(pid);
+            }
+            else
+                pageAccessed(part,tid,pid);
+        }
+        finally
         {
-            PageId pid=pgs.get(i).getId();
-            id2pg.put(pid, pgs.get(i));
-            id2date.put(pid,new Date());
+            part.latch.unlock();
         }
     }
 
@@ -503,14 +1721,13 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        Set<PageId> pids = new HashSet<PageId>(id2pg.keySet());
-        for(PageId pid : pids) {
-            flushPage(pid);
-        }
-
+        ArrayList<PageId> pids=new ArrayList<PageId>();
+        for(Partition part : partitions)
+            pids.addAll(part.id2pg.keySet());
+        flushPages(pids,null,false);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -521,120 +1738,650 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        id2date.remove(pid);
-        id2pg.remove(pid);
+        Partition part=partitionFor(pid);
+        part.latch.lock();
+        try
+        {
+            if(part.id2pg.remove(pid)!=null)
+                pageCount.decrementAndGet();
+            part.evictor.pageRemoved(pid);
+            ringPages.remove(pid);
+        }
+        finally
+        {
+            part.latch.unlock();
+        }
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if(!id2pg.containsKey(pid))//bpûpage
-            return;
-        Page pg=id2pg.get(pid);//ȡpage
-        if(pg.isDirty()==null)//dirty
+        flushPages(Collections.singletonList(pid),null,false);
+    }
+
+    /**
+     * Write back the dirty pages among pids, those dirtied by tid only if
+     * tid is not null. The updates are logged and the log forced once; then
+     * the pages of each file are handed to {@link DbFile#writePages}
+     * together, so that it can combine writes of adjacent pages.
+     * <p>
+     * The pages are marked clean before they are written, and cannot be
+     * evicted until the write is done, since a miss on one of them would
+     * read the old contents from disk.
+     *
+     * @param committing true if tid is committing, so the writes never
+     *        have to be undone
+     */
+    private void flushPages(Collection<PageId> pids, TransactionId tid, boolean committing)
+            throws IOException {
+        //ļ飬ÿpageԭǱ˭Ūģдʧʱָ
+        HashMap<Integer,List<Page>> byFile=new HashMap<Integer,List<Page>>();
+        HashMap<Page,TransactionId> dirtiers=new HashMap<Page,TransactionId>();
+        boolean logged=false;
+        try
+        {
+            for(PageId pid : pids)
+            {
+                Partition part=partitionFor(pid);
+                part.latch.lock();
+                try
+                {
+                    Page pg=part.id2pg.get(pid);//ȡpage
+                    if(pg==null)//bpûpage
+                        continue;
+                    TransactionId dirtier=pg.isDirty();
+                    if(dirtier==null||(tid!=null&&!tid.equals(dirtier))||!flushing.add(pid))
+                        continue;
+                    dirtiers.put(pg,dirtier);
+                    logged|=logWriteBack(pg,dirtier,committing);
+                    pg.markDirty(false,null);//ȥdirty
+                    byFile.computeIfAbsent(pid.getTableId(),t->new ArrayList<Page>()).add(pg);
+                }
+                finally
+                {
+                    part.latch.unlock();
+                }
+            }
+            //WAL־̺дpage
+            if(logged)
+                Database.getLogFile().force();
+            for(Map.Entry<Integer,List<Page>> e : byFile.entrySet())
+            {
+                List<Page> pages=e.getValue();
+                try
+                {
+                    Database.getCatalog().getDatabaseFile(e.getKey()).writePages(pages);
+                }
+                catch (IOException|RuntimeException ex)
+                {
+                    for(Page pg : pages)
+                        pg.markDirty(true,dirtiers.get(pg));
+                    throw ex;
+                }
+                countWrite(e.getKey(),pages.size());
+                dirtiers.keySet().removeAll(pages);
+            }
+        }
+        finally
+        {
+            //ûüдpageָdirty
+            for(Map.Entry<Page,TransactionId> e : dirtiers.entrySet())
+                if(e.getKey().isDirty()==null)
+                    e.getKey().markDirty(true,e.getValue());
+            for(List<Page> pages : byFile.values())
+                for(Page pg : pages)
+                    flushing.remove(pg.getId());
+        }
+    }
+
+    /**
+     * Write a dirty page back to its file. If the transaction that dirtied
+     * it is still running, the update is logged and the log forced before
+     * the page is written. Called with the latch of the page's partition
+     * held.
+     */
+    private void writeDirtyPage(Page pg, boolean committing) throws IOException {
+        TransactionId dirtier=pg.isDirty();
+        if(dirtier==null)//dirty
             return;
+        PageId pid=pg.getId();
+        //WALд־дpage
+        if(logWriteBack(pg,dirtier,committing))
+            Database.getLogFile().force();
         pg.markDirty(false,null);//ȥdirty
         Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pg);//дļ
-        id2pg.put(pid,pg);//BufferPool
+        countWrite(pid.getTableId(),1);
+    }
+
+    /**
+     * Append the update record for a dirty page about to be written back,
+     * if the transaction that dirtied it is still running; the caller
+     * forces the log before the write. Unless the transaction is
+     * committing, the page's before image is kept to undo the write.
+     * Called with the latch of the page's partition held.
+     * @return true if a record was appended
+     */
+    private boolean logWriteBack(Page pg, TransactionId dirtier, boolean committing) throws IOException {
+        PageId pid=pg.getId();
+        //dirtierѾĻ޸Ѿ־
+        if(!lockManager.holdsLock(dirtier,pid))
+            return false;
+        Database.getLogFile().logWrite(dirtier,pg.getBeforeImage(),pg);
+        if(!committing)
+            stolenPages.computeIfAbsent(dirtier,t->new ConcurrentHashMap<PageId,Page>())
+                    .putIfAbsent(pid,pg.getBeforeImage());
+        return true;
+    }
+
+    /**
+     * Whether a dirty page may be written back now: always with STEAL,
+     * otherwise only once the transaction that dirtied it has finished
+     */
+    private boolean canWriteBack(Page pg) {
+        TransactionId dirtier=pg.isDirty();
+        return dirtier==null||steal||!lockManager.holdsLock(dirtier,pg.getId());
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        Set<PageId> pids = tid2lock.get(tid);
-        for(PageId pid : pids) {
-            //exʱflush
-            if(pid2lock.get(pid)==0)
-                flushPage(pid);
+        //ٳbptidŪpageXռţ񶯲
+        //ֻflushtidŪpageͬһļpageһд
+        Set<PageId> recPages=recordPages(tid);
+        Set<PageId> pids=touchedPages(tid);
+        pids.removeAll(recPages);
+        flushPages(pids,tid,true);
+        //¼µpageǱŪģҳдأabortʱ
+        if(!recPages.isEmpty())
+            flushPages(recPages,null,true);
+    }
+
+    /**
+     * Make the updates of a committing transaction durable ahead of its
+     * commit record. Under FORCE its dirty pages are written to disk; under
+     * NO-FORCE only their update records are appended to the log, which
+     * {@link LogFile#logCommit} then forces, and the pages are written back
+     * later by the page cleaner or by eviction.
+     */
+    public void prepareCommit(TransactionId tid) throws IOException {
+        if(!noForce)
+        {
+            flushPages(tid);
+            return;
+        }
+        LogFile log=Database.getLogFile();
+        Set<PageId> recPages=recordPages(tid);
+        Set<PageId> pids=touchedPages(tid);
+        pids.addAll(recPages);
+        for(PageId pid : pids)
+        {
+            Partition part=partitionFor(pid);
+            part.latch.lock();
+            try
+            {
+                Page pg=part.id2pg.get(pid);
+                if(pg!=null&&pg.isDirty()!=null&&(tid.equals(pg.isDirty())||recPages.contains(pid)))
+                    log.logWrite(tid,pg.getBeforeImage(),pg);
+            }
+            finally
+            {
+                part.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write back every dirty page that {@link #canWriteBack} allows.
+     * This is what the page cleaner does each round.
+     */
+    public void cleanPages() throws IOException {
+        for(Partition part : partitions)
+        {
+            for(Page pg : part.id2pg.values())
+            {
+                if(pg.isDirty()==null)
+                    continue;
+                part.latch.lock();
+                try
+                {
+                    //õlatchǰpageѱд
+                    if(part.id2pg.get(pg.getId())==pg&&canWriteBack(pg))
+                        writeDirtyPage(pg,false);
+                }
+                finally
+                {
+                    part.latch.unlock();
+                }
+            }
         }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Discards a page from the buffer pool, preferably one from the given
+     * partition, whose latch the caller holds. Other partitions are only
+     * tried if their latch is free, so two partitions evicting at the same
+     * time cannot deadlock.
      */
-    private synchronized  void evictPage() throws DbException,IllegalArgumentException {
+    private void evictPage(Partition part) throws DbException,IllegalArgumentException {
         // some code goes here
         // not necessary for lab1
-        // LRU policy / MRU policy
-        // id2pgҳlatest/most recently
-        PageId evictPgId=null;//PageId
-        Set<PageId> pids = new HashSet<PageId>(id2date.keySet());
-        Date evictDate=new Date();
-        //policyȡevictPgId
-        switch (Policy)
-        {
-            case 1:{
-                for(PageId pid : pids) {
-                    Date currDate=id2date.get(pid);
-                    //clean page
-                    //ڼʱ׼ȷԲ㣬ܳ
-                    if(currDate.compareTo(evictDate)<0&&id2pg.get(pid).isDirty()==null)
+        if(evictPageFrom(part))
+            return;
+        //dirty pageӱķһλ
+        for(Partition other : partitions)
+        {
+            if(other==part||!other.latch.tryLock())
+                continue;
+            try
+            {
+                if(evictPageFrom(other))
+                    return;
+            }
+            finally
+            {
+                other.latch.unlock();
+            }
+        }
+        throw new DbException("all pages are dirty or pinned");
+    }
+
+    /**
+     * Evict a page of a partition whose latch is held, writing it back
+     * first if it is dirty
+     * @return false if no page of the partition may be written back
+     */
+    private boolean evictPageFrom(Partition part) throws DbException {
+        //滻ѡvictimNO STEALֻclean pageѽdirty page
+        PageId evictPgId=part.evictor.evict(pid -> {
+            Page pg=part.id2pg.get(pid);
+            return pg==null||(!isPinned(pid)&&canWriteBack(pg)&&(flushing.isEmpty()||!flushing.contains(pid)));
+        });
+        if(evictPgId==null)
+            return evictRingPage(part);
+        Page victim=part.id2pg.get(evictPgId);
+        if(victim!=null&&victim.isDirty()!=null)
+        {
+            try
+            {
+                writeDirtyPage(victim,false);
+            }
+            catch (IOException e)
+            {
+                part.evictor.pageAdded(evictPgId);//ûдɹbp
+                throw new DbException("could not write back page: "+e.getMessage());
+            }
+        }
+        if(part.id2pg.remove(evictPgId)!=null)
+            pageCount.decrementAndGet();
+        evictions.inc();
+        return true;
+    }
+
+    /**
+     * Evict a clean page of a partition whose latch is held from the ring
+     * of a scan, for when the replacement policy has nothing to offer
+     * @return false if there is no such page
+     */
+    private boolean evictRingPage(Partition part) {
+        for(Map.Entry<PageId,ScanRing> e : ringPages.entrySet())
+        {
+            PageId pid=e.getKey();
+            if(partitionFor(pid)!=part)
+                continue;
+            Page pg=part.id2pg.get(pid);
+            if(pg!=null&&pg.isDirty()==null&&!flushing.contains(pid)&&!isPinned(pid)
+                    &&ringPages.remove(pid,e.getValue()))
+            {
+                part.id2pg.remove(pid);
+                pageCount.decrementAndGet();
+                evictions.inc();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Create the replacement policy for a policy number
+     * @param p policy number, see {@link #setPolicy}
+     */
+    private EvictionPolicy newEvictionPolicy(int p) {
+        switch (p)
+        {
+            case LRU: return new LruEviction(false);
+            case MRU: return new LruEviction(true);
+            case RANDOM: return new RandomEviction();
+            case CLOCK: return new ClockEviction(partitionCapacity());
+            case LRU_K: return new LruKEviction(2,partitionCapacity());
+            case TWO_Q: return new TwoQEviction(partitionCapacity());
+            default:throw new IllegalArgumentException();
+        }
+    }
+
+    /** Number of pages a partition holds when the pool is evenly spread */
+    private int partitionCapacity() {
+        return (maxPagenum+partitions.length-1)/partitions.length;
+    }
+
+    /**
+     * Set how many page locks a transaction may hold in one table before
+     * they are escalated to a table lock
+     * @param pages ֵ0ʾ
+     */
+    public void setLockEscalationThreshold(int pages) {
+        lockManager.setEscalationThreshold(pages);
+    }
+
+    /**
+     * Let HeapFile lock the tuples it inserts and deletes instead of whole
+     * pages, so that transactions updating different tuples of a page do
+     * not wait for each other. Off by default; readers still lock pages.
+     */
+    public void setRecordLocking(boolean on) {
+        recordLocking=on;
+    }
+
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Set how often the lock manager looks for deadlocks
+     * @param interval (ms)0ʾÿεȴʱ
+     */
+    public void setDeadlockDetectionInterval(long interval) {
+        lockManager.setDetectionInterval(interval);
+    }
+
+    /**
+     * Choose how the lock manager deals with deadlocks: detection, or
+     * prevention by wait-die or wound-wait
+     */
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy) {
+        lockManager.setDeadlockPolicy(policy);
+    }
+
+    /**
+     * Allow or forbid writing back pages dirtied by transactions that are
+     * still running (STEAL). Off by default.
+     */
+    public void setSteal(boolean steal) {
+        this.steal=steal;
+    }
+
+    /**
+     * Let commit rely on the log instead of writing the transaction's pages
+     * (NO-FORCE). Off by default; LogFile does not implement recovery, so
+     * committed pages that are still dirty in memory are lost on a crash.
+     */
+    public void setNoForce(boolean noForce) {
+        this.noForce=noForce;
+    }
+
+    /**
+     * Remove the deleted versions of versioned files that no transaction
+     * can see any more, freeing their slots for new tuples. Only pages with
+     * deletes committed since they were last vacuumed are visited; each is
+     * locked IX for a moment, like an update under record locking. A page
+     * whose visit fails in any way is visited again next time.
+     * @return the number of versions removed
+     */
+    public int vacuum() throws IOException, InterruptedException {
+        long oldest=oldestReadView();
+        int removed=0;
+        for(PageId pid : new ArrayList<PageId>(deadPages))
+        {
+            deadPages.remove(pid);
+            TransactionId vtid=new TransactionId();
+            boolean again=true;//û˳ύͷŻȥ
+            boolean committed=false;
+            try
+            {
+                boolean left=false;
+                int n=0;
+                HeapPage pg=(HeapPage)getPageForRecordUpdate(vtid,pid);
+                pg.getLatch().writeLock().lock();
+                try
+                {
+                    for(int slot=0;slot<pg.getNumSlots();slot++)
                     {
-                        evictDate=currDate;
-                        evictPgId=pid;
+                        if(!pg.isSlotUsed(slot)||pg.getXmax(slot)<=0)
+                            continue;
+                        //жܿ´
+                        if(pg.getXmax(slot)>oldest||!lockRecord(vtid,new RecordId(pid,slot),false))
+                            left=true;
+                        else
+                        {
+                            pg.clearSlot(slot);
+                            n++;
+                        }
                     }
-                }
-                break;
-            }
-            case 2:{
-                evictDate=new Date(0);//ʼΪʱ
-                for(PageId pid : pids) {
-                    Date currDate=id2date.get(pid);
-                    if(currDate.compareTo(evictDate)>0&&id2pg.get(pid).isDirty()==null)
+                    if(n>0)
                     {
-                        evictDate=currDate;
-                        evictPgId=pid;
+                        pg.markDirty(true,vtid);
+                        noteFreeSlot(pid);
                     }
                 }
-                break;
-            }
-            case 3:{
-                //id2pgȡһ
-                //Random rand = new Random();
-                //int pos=rand.nextInt(pids.size()),i=0;
-                for(PageId pid:pids){
-                    if(id2pg.get(pid).isDirty()==null)
-                        evictPgId=pid;
+                finally
+                {
+                    pg.getLatch().writeLock().unlock();
+                    unpinPage(vtid,pid);
                 }
-                break;
+                transactionComplete(vtid,true);
+                committed=true;
+                removed+=n;
+                again=left;
+            }
+            catch (TransactionAbortedException|DbException e)
+            {
+                //òpage´
+            }
+            finally
+            {
+                //ȷŻȥabortʧҲᶪһҳ
+                if(again)
+                    deadPages.add(pid);
+                //жϻύʧʱҲҪŵvtidpin
+                if(!committed)
+                    transactionComplete(vtid,false);
             }
-            default:throw new IllegalArgumentException();
         }
-        if(evictPgId==null)
-            throw new DbException("all pages are dirty");
+        reclaimed.add(removed);
+        return removed;
+    }
+
+    /**
+     * Start or stop the vacuum thread, a daemon thread that calls
+     * {@link #vacuum} every interval ms
+     * @param interval (ms)0ʾر
+     */
+    public synchronized void setVacuumInterval(long interval) {
+        if(interval<0)
+            throw new IllegalArgumentException("negative vacuum interval");
+        vacuumInterval=interval;
+        if(vacuumer!=null)
+        {
+            vacuumer.interrupt();
+            vacuumer=null;
+        }
+        if(interval>0)
+        {
+            vacuumer=new Thread(this::runVacuum,"mvcc-vacuum");
+            vacuumer.setDaemon(true);
+            vacuumer.start();
+        }
+    }
+
+    private void runVacuum() {
+        Thread self=Thread.currentThread();
+        while(vacuumer==self)
+        {
+            try
+            {
+                vacuum();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            try
+            {
+                Thread.sleep(vacuumInterval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start or stop the page cleaner, a daemon thread that calls
+     * {@link #cleanPages} every interval ms, so that misses seldom have to
+     * write back their victim themselves.
+     * @param interval (ms)0ʾر
+     */
+    public synchronized void setPageCleanerInterval(long interval) {
+        if(interval<0)
+            throw new IllegalArgumentException("negative cleaner interval");
+        cleanerInterval=interval;
+        if(cleaner!=null)
+        {
+            cleaner.interrupt();
+            cleaner=null;
+        }
+        if(interval>0)
+        {
+            cleaner=new Thread(this::runCleaner,"page-cleaner");
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+    }
 
-        Page target=id2pg.get(evictPgId);
-        if(target.isDirty()!=null)//dirty pageҪflush
+    private void runCleaner() {
+        Thread self=Thread.currentThread();
+        while(cleaner==self)
         {
-            try{
-                flushPage(evictPgId);
-            } catch (IOException e){
+            try
+            {
+                cleanPages();
+            }
+            catch (IOException e)
+            {
                 e.printStackTrace();
             }
+            try
+            {
+                Thread.sleep(cleanerInterval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start or stop the auto-sizer, a daemon thread that every interval ms
+     * shrinks the pool by an eighth when less than AUTO_SIZE_LOW_FREE of
+     * the JVM heap is free, and grows it by an eighth when more than
+     * AUTO_SIZE_HIGH_FREE is free, staying within [minPages, maxPages].
+     * @param interval (ms)0ʾر
+     */
+    public synchronized void setAutoSize(int minPages, int maxPages, long interval) {
+        if(interval<0)
+            throw new IllegalArgumentException("negative auto-size interval");
+        if(minPages<1||maxPages<minPages)
+            throw new IllegalArgumentException("bad page range ["+minPages+", "+maxPages+"]");
+        autoMinPages=minPages;
+        autoMaxPages=maxPages;
+        autoSizeInterval=interval;
+        if(sizer!=null)
+        {
+            sizer.interrupt();
+            sizer=null;
+        }
+        if(interval>0)
+        {
+            sizer=new Thread(this::runSizer,"pool-sizer");
+            sizer.setDaemon(true);
+            sizer.start();
         }
-        id2date.remove(evictPgId);//evictPgIdһΪnull
-        id2pg.remove(evictPgId);
+    }
 
+    private void runSizer() {
+        Thread self=Thread.currentThread();
+        while(sizer==self)
+        {
+            Runtime rt=Runtime.getRuntime();
+            double free=1.0-(double)(rt.totalMemory()-rt.freeMemory())/rt.maxMemory();
+            int cur=maxPagenum;
+            int step=Math.max(1,cur/8);
+            int target=cur;
+            if(free<AUTO_SIZE_LOW_FREE)
+                target=Math.max(autoMinPages,cur-step);
+            else if(free>AUTO_SIZE_HIGH_FREE)
+                target=Math.min(autoMaxPages,cur+step);
+            //Χ֮ҲҪȻصΧ
+            target=Math.min(autoMaxPages,Math.max(autoMinPages,target));
+            try
+            {
+                if(target!=cur)
+                    resize(target);
+            }
+            catch (DbException e)
+            {
+                e.printStackTrace();
+            }
+            try
+            {
+                Thread.sleep(autoSizeInterval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
     }
+
     /**
      * Set eviction policy
-     * @param p policy number 1LRU 2MRU 3
+     * @param p policy number 1LRU 2MRU 3 4CLOCK 5LRU-2 62Q
      */
-    public void setPolicy(int p) throws IllegalArgumentException{
+    public synchronized void setPolicy(int p) throws IllegalArgumentException{
         //some code goes here
         // not necessary for lab1
-        if(p>3||p<0)
-            throw new IllegalArgumentException();
+        newEvictionPolicy(p);//ȼpǷϷ
+        for(Partition part : partitions)
+        {
+            part.latch.lock();
+            try
+            {
+                EvictionPolicy e=newEvictionPolicy(p);
+                //bpеpage²
+                for(PageId pid : part.id2pg.keySet())
+                    if(!ringPages.containsKey(pid))
+                        e.pageAdded(pid);
+                part.evictor=e;
+            }
+            finally
+            {
+                part.latch.unlock();
+            }
+        }
         Policy=p;
     }
 }
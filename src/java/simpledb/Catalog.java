@@ -46,11 +46,15 @@ public class Catalog {
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
-        id2file.put(file.getId(),file);
+        DbFile old=id2file.put(file.getId(),file);
+        if(old!=null&&old!=file)
+            old.close();
         if(name2id.containsKey(name))//nameֳͻ
         {
             int id = name2id.get(name);
-            id2file.remove(id);
+            DbFile removed=id2file.remove(id);
+            if(removed!=null&&removed!=file)
+                removed.close();
             id2name.remove(id);
             id2pk.remove(id);
             name2id.remove(name);//ɾȥԭ
@@ -134,9 +138,11 @@ public class Catalog {
         // some code goes here
         return id2name.get(id);
     }
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
         // some code goes here
+        for(DbFile file : id2file.values())
+            file.close();
         id2file.clear();
         id2name.clear();
         id2pk.clear();
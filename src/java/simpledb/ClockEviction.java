@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) eviction. Resident pages sit in a ring of frames,
+ * each with a reference bit. A hit only sets the bit, without taking any
+ * lock; the eviction hand sweeps the ring clearing set bits and stops at
+ * the first evictable page whose bit is already clear.
+ */
+public class ClockEviction implements EvictionPolicy {
+
+    private final ConcurrentHashMap<PageId, Integer> slots = new ConcurrentHashMap<>();
+    private PageId[] frames;
+    /** Reference bits, one per frame. Written by hits without locking; a lost update only costs a second chance. */
+    private volatile boolean[] ref;
+    /** Stack of unused frames. */
+    private int[] free;
+    private int freeTop;
+    private int hand;
+
+    /** @param capacity initial number of frames; the ring grows if more pages arrive */
+    public ClockEviction(int capacity) {
+        capacity = Math.max(capacity, 1);
+        frames = new PageId[capacity];
+        ref = new boolean[capacity];
+        free = new int[capacity];
+        for (int i = 0; i < capacity; i++)
+            free[freeTop++] = capacity - 1 - i;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer s = slots.get(pid);
+        if (s != null) {
+            ref[s] = true;
+            return;
+        }
+        if (freeTop == 0)
+            grow();
+        int slot = free[--freeTop];
+        frames[slot] = pid;
+        ref[slot] = true;
+        slots.put(pid, slot);
+    }
+
+    private void grow() {
+        int n = frames.length;
+        frames = Arrays.copyOf(frames, n * 2);
+        ref = Arrays.copyOf(ref, n * 2);
+        free = new int[n * 2];
+        for (int i = n * 2 - 1; i >= n; i--)
+            free[freeTop++] = i;
+    }
+
+    public void pageAccessed(PageId pid) {
+        Integer s = slots.get(pid);
+        if (s != null) {
+            boolean[] bits = ref;
+            if (s < bits.length)
+                bits[s] = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer s = slots.remove(pid);
+        if (s == null)
+            return;
+        frames[s] = null;
+        ref[s] = false;
+        free[freeTop++] = s;
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        // two full turns: the first may only clear reference bits
+        for (int steps = 2 * frames.length; steps > 0; steps--) {
+            int h = hand;
+            hand = (hand + 1) % frames.length;
+            PageId pid = frames[h];
+            if (pid == null)
+                continue;
+            if (ref[h]) {
+                ref[h] = false;
+                continue;
+            }
+            if (evictable.test(pid)) {
+                pageRemoved(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    /** Pages whose reference bit is set come first. */
+    public synchronized List<PageId> pagesByRecency() {
+        ArrayList<PageId> pages = new ArrayList<>(slots.size());
+        ArrayList<PageId> unreferenced = new ArrayList<>();
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null)
+                (ref[i] ? pages : unreferenced).add(frames[i]);
+        }
+        pages.addAll(unreferenced);
+        return pages;
+    }
+}
@@ -3,6 +3,8 @@ package simpledb;
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.JMException;
+
 /**
  * Database is a class that initializes several static variables used by the
  * database system (the catalog, the buffer pool, and the log files, in
@@ -14,6 +16,16 @@ import java.util.concurrent.atomic.AtomicReference;
  * @Threadsafe
  */
 public class Database {
+    // must be created before the first Database, whose buffer pool registers its metrics
+    private static final Metrics _metrics = new Metrics();
+    static {
+        try {
+            _metrics.registerMBean();
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
     private static AtomicReference<Database> _instance = new AtomicReference<Database>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
@@ -45,6 +57,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the metrics registry, which outlives resets of the database */
+    public static Metrics getMetrics() {
+        return _metrics;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -55,11 +72,23 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given number of partitions and return it
+     */
+    public static BufferPool resetBufferPool(int pages, int partitions) {
+        return resetBufferPool(new BufferPool(pages, partitions));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +104,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._catalog.clear();
     }
 
 }
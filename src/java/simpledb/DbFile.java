@@ -28,6 +28,27 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push several pages of this file to disk. Implementations may reorder
+     * and combine the writes, and should make the pages durable before
+     * returning.
+     *
+     * @param pages The pages to write
+     * @throws IOException if a write fails
+     */
+    public default void writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+    }
+
+    /**
+     * Release what is held open for this file, such as file handles. Called
+     * when the file is removed from the catalog; the file stays usable, and
+     * opens what it needs again on its next read or write.
+     */
+    public default void close() {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
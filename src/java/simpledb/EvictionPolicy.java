@@ -0,0 +1,42 @@
+package simpledb;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when
+ * it needs room for another one. The BufferPool reports every page that
+ * enters or leaves the pool and every hit on a resident page; the policy
+ * keeps whatever bookkeeping it needs to pick a victim.
+ * <p>
+ * Hits are the hot path, so implementations should record them without
+ * allocating and without walking the resident set. Implementations must
+ * be safe to call from several threads at once.
+ */
+public interface EvictionPolicy {
+
+    /** A page was read into the pool (or put there by an update). */
+    public void pageAdded(PageId pid);
+
+    /** A page that is already resident was requested again. */
+    public void pageAccessed(PageId pid);
+
+    /** A page left the pool for a reason other than {@link #evict}. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose a victim among the resident pages and stop tracking it.
+     *
+     * @param evictable tells whether a page may be evicted right now, e.g.
+     *     that it is not dirty
+     * @return the chosen page, or null if no resident page is evictable
+     */
+    public PageId evict(Predicate<PageId> evictable);
+
+    /**
+     * Return the tracked pages, most recently used first as far as the
+     * policy knows. This is used to save the resident set for a warm
+     * start, so it may walk every page.
+     */
+    public List<PageId> pagesByRecency();
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FrameArena hands out fixed-size page frames carved out of large direct
+ * (off-heap) ByteBuffer slabs, so that the bytes of cached pages do not
+ * live on the Java heap and do not add to GC work.
+ * <p>
+ * A frame is allocated on behalf of an owner object, typically the page
+ * that uses it as backing store, and goes back to the arena once the
+ * owner has become unreachable. Frames are never returned explicitly:
+ * an evicted page may still be referenced by an iterator that is
+ * halfway through it, and its frame must not be reused under it.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    /** Default number of frames allocated at once. */
+    public static final int DEFAULT_FRAMES_PER_SLAB = 256;
+
+    /** Tracks the owner of a frame; enqueued once the owner is gone. */
+    private static class FrameRef extends PhantomReference<Object> {
+        final ByteBuffer frame;
+
+        FrameRef(Object owner, ByteBuffer frame, ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.frame = frame;
+        }
+    }
+
+    private final int frameSize;
+    private final int framesPerSlab;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final ReferenceQueue<Object> released = new ReferenceQueue<>();
+    /** Keeps the FrameRefs themselves reachable until they are enqueued. */
+    private final Set<FrameRef> inUse = ConcurrentHashMap.newKeySet();
+    private final AtomicLong totalFrames = new AtomicLong();
+
+    public FrameArena(int frameSize) {
+        this(frameSize, DEFAULT_FRAMES_PER_SLAB);
+    }
+
+    public FrameArena(int frameSize, int framesPerSlab) {
+        if (frameSize <= 0 || framesPerSlab <= 0)
+            throw new IllegalArgumentException("frame size and frames per slab must be positive");
+        this.frameSize = frameSize;
+        this.framesPerSlab = framesPerSlab;
+    }
+
+    /**
+     * Allocate a frame for owner. The frame keeps whatever bytes its
+     * previous owner left in it; callers are expected to overwrite all of
+     * it.
+     */
+    public ByteBuffer allocate(Object owner) {
+        reclaim();
+        ByteBuffer frame = free.poll();
+        if (frame == null)
+            frame = grow();
+        inUse.add(new FrameRef(owner, frame, released));
+        return frame;
+    }
+
+    /** Move the frames of owners that have died back to the free list. */
+    private void reclaim() {
+        Reference<?> r;
+        while ((r = released.poll()) != null) {
+            FrameRef ref = (FrameRef) r;
+            inUse.remove(ref);
+            free.add(ref.frame);
+        }
+    }
+
+    private ByteBuffer grow() {
+        ByteBuffer slab;
+        try {
+            slab = ByteBuffer.allocateDirect(frameSize * framesPerSlab);
+        } catch (OutOfMemoryError e) {
+            // allocateDirect runs a GC before giving up, which may have
+            // released owners of existing frames
+            reclaim();
+            ByteBuffer frame = free.poll();
+            if (frame == null)
+                throw e;
+            return frame;
+        }
+        ByteBuffer first = null;
+        for (int i = 0; i < framesPerSlab; i++) {
+            ByteBuffer d = slab.duplicate();
+            d.position(i * frameSize);
+            d.limit((i + 1) * frameSize);
+            ByteBuffer frame = d.slice();
+            if (first == null)
+                first = frame;
+            else
+                free.add(frame);
+        }
+        totalFrames.addAndGet(framesPerSlab);
+        return first;
+    }
+
+    /** Return the size in bytes of each frame. */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** Return the number of frames the arena has allocated off-heap. */
+    public long getTotalFrames() {
+        return totalFrames.get();
+    }
+
+    /** Return the number of frames currently owned by live objects. */
+    public int getFramesInUse() {
+        reclaim();
+        return inUse.size();
+    }
+}
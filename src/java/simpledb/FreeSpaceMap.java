@@ -0,0 +1,144 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * The free-space map of a HeapFile: one bit per page, set if the page may
+ * have a free slot. Inserts ask it for a page with room instead of walking
+ * the file from page 0, and clear the bit of a page they find full;
+ * deletes, aborts and vacuum set it again. The bits are hints that are
+ * checked against the page before it is used, so a stale bit costs one
+ * wasted look, or leaves a free slot unused until the page is next freed
+ * from.
+ * <p>
+ * The map is kept next to the file, in a file named like it with the
+ * suffix {@link #SUFFIX}: the number of pages the map covers, followed by
+ * the bitmap in pages of {@link #BITMAP_PAGE_SIZE} bytes. {@link #save}
+ * only writes the bitmap pages that changed. Pages of the file the map
+ * does not cover, because they were added behind its back or after it was
+ * last saved, are taken to have room.
+ */
+public class FreeSpaceMap {
+    public static final String SUFFIX = ".fsm";
+    public static final int BITMAP_PAGE_SIZE = 4096;
+    private static final int PAGES_PER_BITMAP_PAGE = BITMAP_PAGE_SIZE * 8;
+    private static final int HEADER_SIZE = 4;
+
+    private final File file;
+    private final PageIO io;
+    private final BitSet room = new BitSet();
+    /** The bitmap pages changed since the map was last saved */
+    private final BitSet dirty = new BitSet();
+    private boolean headerDirty = false;
+    /** Number of pages of the file the map covers */
+    private int covered = 0;
+    /** No page below this one has its bit set */
+    private int lowest = 0;
+
+    /**
+     * Load the map of dataFile from its side file, if there is one, and
+     * extend it to the given number of pages. The side file of a data file
+     * in the temporary directory is deleted on exit, as such data files
+     * (scratch and test tables) are.
+     */
+    public FreeSpaceMap(File dataFile, int numPages) {
+        file = new File(dataFile.getPath() + SUFFIX);
+        if (isTemporary(dataFile))
+            file.deleteOnExit();
+        io = new PageIO(file);
+        long len = file.length();
+        if (len >= HEADER_SIZE) {
+            try {
+                byte[] b = new byte[(int) len];
+                io.read(b, b.length, 0);
+                int saved = ByteBuffer.wrap(b).getInt();
+                BitSet bits = BitSet.valueOf(ByteBuffer.wrap(b, HEADER_SIZE, b.length - HEADER_SIZE));
+                room.or(bits.get(0, Math.min(saved, numPages)));
+                covered = Math.min(saved, numPages);
+            } catch (IOException | RuntimeException e) {
+                // only hints: start over, with every page taken to have room
+                room.clear();
+                covered = 0;
+            }
+        }
+        cover(numPages);
+    }
+
+    private static boolean isTemporary(File dataFile) {
+        try {
+            File dir = dataFile.getCanonicalFile().getParentFile();
+            return dir != null
+                && dir.equals(new File(System.getProperty("java.io.tmpdir")).getCanonicalFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Take the pages of the file from the end of the map up to numPages to have room */
+    public synchronized void cover(int numPages) {
+        if (numPages <= covered)
+            return;
+        for (int p = covered; p < numPages; p++)
+            set(p, true);
+    }
+
+    /**
+     * Return the first page at or after from that may have a free slot,
+     * or -1 if there is none.
+     */
+    public synchronized int next(int from) {
+        int i = room.nextSetBit(Math.max(from, lowest));
+        if (from <= lowest)
+            lowest = i < 0 ? covered : i;
+        return i;
+    }
+
+    /** Record whether a page may have a free slot. */
+    public synchronized void setRoom(int page, boolean hasRoom) {
+        if (page >= covered) {
+            // pages in between were added without the map knowing
+            cover(page);
+        }
+        if (page < covered && room.get(page) == hasRoom)
+            return;
+        set(page, hasRoom);
+    }
+
+    private void set(int page, boolean hasRoom) {
+        room.set(page, hasRoom);
+        dirty.set(page / PAGES_PER_BITMAP_PAGE);
+        if (hasRoom)
+            lowest = Math.min(lowest, page);
+        if (page >= covered) {
+            covered = page + 1;
+            headerDirty = true;
+        }
+    }
+
+    /** Write the changed parts of the map to its side file. */
+    public synchronized void save() throws IOException {
+        if (dirty.isEmpty() && !headerDirty)
+            return;
+        for (int k = dirty.nextSetBit(0); k >= 0; k = dirty.nextSetBit(k + 1)) {
+            byte[] bits = room.get(k * PAGES_PER_BITMAP_PAGE, (k + 1) * PAGES_PER_BITMAP_PAGE).toByteArray();
+            byte[] page = new byte[BITMAP_PAGE_SIZE];
+            System.arraycopy(bits, 0, page, 0, bits.length);
+            io.write(page, HEADER_SIZE + (long) k * BITMAP_PAGE_SIZE);
+        }
+        io.write(ByteBuffer.allocate(HEADER_SIZE).putInt(0, covered), 0);
+        dirty.clear();
+        headerDirty = false;
+    }
+
+    /** Save the map and close its side file; it is opened again when next used. */
+    public synchronized void close() throws IOException {
+        try {
+            save();
+        } finally {
+            io.close();
+        }
+    }
+}
@@ -1,8 +1,8 @@
 package simpledb;
 
-import com.sun.deploy.panel.ITreeNode;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -19,6 +19,12 @@ public class HeapFile implements DbFile {
 
     private File f;
     private TupleDesc td;
+    private final boolean versioned;
+    private final PageIO io;//̹߳һ򿪵FileChannel
+    private volatile FreeSpaceMap fsm=null;//һβɾʱż
+
+    /** Number of pages {@link #bulkAppend} writes at once */
+    public static final int BULK_PAGES = 64;
     int numPage;
     /**
      * Constructs a heap file backed by the specified file.
@@ -28,9 +34,34 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f,td,false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, versioned or not.
+     * <p>
+     * In a versioned (MVCC) file every tuple is a version stamped with the
+     * transactions that created and deleted it (see {@link HeapPage#isVisible}).
+     * Scans take no locks and see the versions committed as of the
+     * transaction's first read, plus its own changes; updates lock single
+     * records, and a deleted version stays on its page until
+     * {@link BufferPool#vacuum} finds that no reader can see it any more.
+     * A transaction that deletes a version deleted by a commit it cannot
+     * see is aborted. The slots of a versioned file are
+     * {@link HeapPage#VERSION_HEADER} bytes larger, so a file must always
+     * be opened the way it was created.
+     */
+    public HeapFile(File f, TupleDesc td, boolean versioned) {
         // some code goes here
         this.f=f;
         this.td=td;
+        this.versioned=versioned;
+        this.io=new PageIO(f);
+    }
+
+    /** Return true if this is a versioned (MVCC) file */
+    public boolean isVersioned() {
+        return versioned;
     }
 
     /**
@@ -70,31 +101,93 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws IllegalArgumentException {
         // some code goes here
-        long offset = pid.getPageNumber() * BufferPool.getPageSize();
-        byte[] data = new byte[BufferPool.getPageSize()];
-        try {
-            RandomAccessFile rFile = new RandomAccessFile(f, "r");
-            rFile.seek(offset);
-            for (int i = 0; i < BufferPool.getPageSize(); i++) {
-                data[i] = (byte) rFile.read();
-            }
-            HeapPage page = new HeapPage((HeapPageId) pid, data);
-            rFile.close();
-            return page;
-        } catch (Exception e) {
-            return null;
+        int pageSize=BufferPool.getPageSize();
+        //һζһҳ̵߳bufferHeapPageԼframe
+        byte[] data=PageIO.buffer(pageSize);
+        try
+        {
+            io.read(data,pageSize,(long)pid.getPageNumber()*pageSize);
+            return new HeapPage((HeapPageId) pid,data);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
         }
     }
 
-
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
-            raf.seek(page.getId().getPageNumber() * BufferPool.getPageSize());
-            byte[] data = page.getPageData();
-            raf.write(data);
+        io.write(page.getPageData(),(long)page.getId().getPageNumber()*BufferPool.getPageSize());
+    }
+
+    /**
+     * Writes the pages in page number order, with one write per run of
+     * adjacent pages, and syncs the file once.
+     */
+    public void writePages(List<Page> pages) throws IOException {
+        ArrayList<Page> sorted=new ArrayList<Page>(pages);
+        sorted.sort(Comparator.comparingInt(p -> p.getId().getPageNumber()));
+        int pageSize=BufferPool.getPageSize();
+        int i=0;
+        while(i<sorted.size())
+        {
+            //ҳӵiҳʼһ
+            int first=sorted.get(i).getId().getPageNumber();
+            int j=i+1;
+            while(j<sorted.size()&&sorted.get(j).getId().getPageNumber()==first+(j-i))
+                j++;
+            //channelǹõģpositiongathering writeƴһд
+            ByteBuffer run=ByteBuffer.allocate((j-i)*pageSize);
+            for(int k=i;k<j;k++)
+                run.put(sorted.get(k).getPageData());
+            run.flip();
+            io.write(run,(long)first*pageSize);
+            i=j;
+        }
+        io.force();
+        FreeSpaceMap m=fsm;
+        if(m!=null)
+            m.save();
+    }
+
+    /**
+     * Read the pages of this file by copying them out of memory mappings of
+     * the file instead of with read calls, or stop doing so; see
+     * {@link PageIO}. Meant for read-mostly tables.
+     */
+    public void setMapped(boolean mapped) {
+        io.setMapped(mapped);
+    }
+
+    /** Return true if pages are read out of mappings of the file */
+    public boolean isMapped() {
+        return io.isMapped();
+    }
+
+    /**
+     * Close the file's channel, and save and close its free-space map; they
+     * are opened again when next used
+     */
+    public void close() {
+        try
+        {
+            FreeSpaceMap m=fsm;
+            if(m!=null)
+                m.close();
+        }
+        catch (IOException e)
+        {
+            //ֻʾûĻ´ΰûǵҳпλ
+        }
+        try
+        {
+            io.close();
+        }
+        catch (IOException e)
+        {
+            //زҲӰ֮ʹã´ζд´
         }
     }
 
@@ -106,57 +199,261 @@ public class HeapFile implements DbFile {
         return (int)(f.length() / BufferPool.getPageSize());
     }
 
+    /**
+     * Return the free-space map of this file, loading it on first use; see
+     * {@link FreeSpaceMap}
+     */
+    FreeSpaceMap fsm() {
+        FreeSpaceMap m=fsm;
+        if(m!=null)
+            return m;
+        synchronized(this)
+        {
+            if(fsm==null)
+                fsm=new FreeSpaceMap(f,numPages());
+            return fsm;
+        }
+    }
+
+    /**
+     * Return the first page at or after from that may have a free slot, or
+     * numPages() if there is none, so that the caller adds a page
+     */
+    private int nextWithRoom(int from) {
+        FreeSpaceMap m=fsm();
+        int pos=m.next(from);
+        if(pos>=0)
+            return pos;
+        //ļmap֪±䳤
+        int n=numPages();
+        m.cover(n);
+        pos=m.next(from);
+        return pos<0?n:pos;
+    }
+
+    /**
+     * Note that a slot of a page of this file has been freed, by an abort or
+     * by vacuum, so that inserts look at the page again
+     */
+    public void noteFreeSlot(int pageNo) {
+        fsm().setRoom(pageNo,true);
+    }
+
     // see DbFile.java for javadocs
-    public synchronized ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException, InterruptedException {
-        // some code goes here
-        //ͨpidBufferPoolpage
-        //ɻ޸BufferPoolPage᲻ֻ޸һ
-        //ȷʵΪһtransactionڣļ
-        ArrayList<Page> ans=new ArrayList<>();
-        int pos=0;
+        if(versioned||Database.getBufferPool().isRecordLocking())
+            return insertTupleByRecord(tid,t);
+        return insertTupleByPage(tid,t);
+    }
+
+    /**
+     * Insert under record locking: the tuple goes to the first free slot
+     * whose record lock can be taken without waiting, on a page that is
+     * only locked IX, so that concurrent inserters share pages. The page is
+     * returned still pinned; BufferPool unpins it once it has cached it.
+     */
+    private ArrayList<Page> insertTupleByRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException, InterruptedException {
+        BufferPool bp=Database.getBufferPool();
+        for(int pos=nextWithRoom(0);;pos=nextWithRoom(pos+1))
+        {
+            HeapPageId pid=new HeapPageId(getId(),pos);
+            synchronized(this)
+            {
+                //pageˣļдһҳհҳ
+                if(pos==numPages())
+                {
+                    writePage(new HeapPage(pid,HeapPage.createEmptyPageData()));
+                    fsm().setRoom(pos,true);
+                }
+            }
+            HeapPage pg=(HeapPage) bp.getPageForRecordUpdate(tid,pid);
+            boolean inserted=false;
+            try
+            {
+                //page latchֻڸһҳʱ
+                pg.getLatch().writeLock().lock();
+                for(int i=0;i<pg.getNumSlots()&&!inserted;i++)
+                {
+                    //ɾûύslotԱţ
+                    if(!pg.isSlotUsed(i)&&bp.lockRecord(tid,new RecordId(pid,i),false))
+                    {
+                        pg.insertTuple(t,i);
+                        if(versioned)
+                            pg.setXmin(i,HeapPage.uncommitted(tid));
+                        pg.markDirty(true,tid);
+                        inserted=true;
+                    }
+                }
+                //ŵĿslotܿճֻ˲ż
+                if(pg.getNumEmptySlots()==0)
+                    fsm().setRoom(pos,false);
+            }
+            finally
+            {
+                pg.getLatch().writeLock().unlock();
+                if(!inserted)
+                    bp.unpinPage(tid,pid);
+            }
+            if(inserted)
+            {
+                bp.recordChanged(tid,t,true);
+                ArrayList<Page> ans=new ArrayList<>();
+                ans.add(pg);
+                return ans;
+            }
+            bp.releasePage(tid,pid);
+        }
+    }
+
+    /**
+     * Insert under page locks: the tuple goes to the first page with a free
+     * slot that can be locked X without waiting, or else to a new page at
+     * the end of the file. Pages are taken from the free-space map, so full
+     * pages are not looked at. Free space is looked at under the page latch
+     * alone, so the pages passed over are neither locked nor waited for,
+     * and inserters into the same file do not queue up behind each other.
+     */
+    private ArrayList<Page> insertTupleByPage(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException, InterruptedException {
+        BufferPool bp=Database.getBufferPool();
+        for(int pos=nextWithRoom(0);;pos=nextWithRoom(pos+1))
+        {
+            HeapPageId pid=new HeapPageId(getId(),pos);
+            boolean added=false;
+            synchronized(this)
+            {
+                //page˻򱻱ռţļдһҳհҳ
+                if(pos==numPages())
+                {
+                    writePage(new HeapPage(pid,HeapPage.createEmptyPageData()));
+                    fsm().setRoom(pos,true);
+                    added=true;
+                }
+            }
+            if(!added&&!hasRoom(bp,tid,pid))
+            {
+                fsm().setRoom(pos,false);
+                continue;
+            }
+            boolean held=bp.holdsLock(tid,pid);
+            //Լӵҳ͵ļһֱ䳤
+            HeapPage pg=(HeapPage)(added?bp.getPage(tid,pid,Permissions.READ_WRITE)
+                    :bp.tryGetPage(tid,pid,Permissions.READ_WRITE));
+            if(pg==null)
+                continue;
+            boolean inserted=false;
+            pg.getLatch().writeLock().lock();
+            try
+            {
+                //λõ֮䣬Ѿ
+                if(pg.getNumEmptySlots()>0)
+                {
+                    pg.insertTuple(t);
+                    pg.markDirty(true,tid);
+                    inserted=true;
+                }
+                if(pg.getNumEmptySlots()==0)
+                    fsm().setRoom(pos,false);
+            }
+            finally
+            {
+                pg.getLatch().writeLock().unlock();
+                bp.unpinPage(tid,pid);
+            }
+            if(inserted)
+            {
+                ArrayList<Page> ans=new ArrayList<>();
+                ans.add(pg);
+                return ans;
+            }
+            //ûĹһҳϷŵ
+            if(!held)
+                bp.releasePage(tid,pid);
+        }
+    }
+
+    /**
+     * Append the tuples of it to this file on behalf of tid, bypassing the
+     * per-tuple insert path: tuples are packed into new pages in memory,
+     * which are added to the end of the file {@link #BULK_PAGES} at a time
+     * with one write, and logged once each; see
+     * {@link BufferPool#appendPages}. The pages do not go through the buffer
+     * pool. They stay locked X by tid until it completes, and are emptied
+     * again if it aborts. Pages that already have room are not filled up.
+     * Not supported on versioned files.
+     *
+     * @return the number of tuples appended
+     */
+    public int bulkAppend(TransactionId tid, Iterator<Tuple> it)
+            throws DbException, IOException, TransactionAbortedException, InterruptedException {
+        if(versioned)
+            throw new DbException("bulk append is not supported on versioned files");
         BufferPool bp=Database.getBufferPool();
-        HeapPage currPg=(HeapPage) bp.getPage(tid,new HeapPageId(getId(),pos++),Permissions.READ_ONLY);
+        int perPage=(BufferPool.getPageSize()*8)/(td.getSize()*8+1);
+        ArrayList<Tuple> batch=new ArrayList<Tuple>();
+        int count=0;
+        while(it.hasNext())
+        {
+            Tuple t=it.next();
+            if(!t.getTupleDesc().equals(td))
+                throw new DbException("tupleDesc is mismatch");
+            batch.add(t);
+            if(batch.size()==BULK_PAGES*perPage)
+            {
+                appendBatch(bp,tid,batch,perPage);
+                count+=batch.size();
+                batch.clear();
+            }
+        }
+        appendBatch(bp,tid,batch,perPage);
+        return count+batch.size();
+    }
 
-        while(pos<numPages()&&currPg.getNumEmptySlots()==0)
+    /**
+     * Pack a batch of tuples into new pages at the end of the file and
+     * write them. Tuples are buffered first, so that the child iterator
+     * never runs while the file is held.
+     */
+    private void appendBatch(BufferPool bp, TransactionId tid, List<Tuple> batch, int perPage)
+            throws DbException, IOException, TransactionAbortedException, InterruptedException {
+        if(batch.isEmpty())
+            return;
+        synchronized(this)
         {
-            //currPgˣͷ
-            if(currPg.getNumEmptySlots()==0)
-                bp.releasePage(tid, currPg.getId());
-            currPg=(HeapPage) bp.getPage(tid,new HeapPageId(getId(),pos++),Permissions.READ_ONLY);
+            //ͲʱҳһļҳŲŲᱻռȥ
+            int first=numPages();
+            ArrayList<Page> pages=new ArrayList<Page>();
+            for(int i=0;i<batch.size();i+=perPage)
+            {
+                HeapPage pg=new HeapPage(new HeapPageId(getId(),first+pages.size()),
+                        HeapPage.createEmptyPageData());
+                int n=Math.min(perPage,batch.size()-i);
+                for(int slot=0;slot<n;slot++)
+                    pg.insertTuple(batch.get(i+slot),slot);
+                pages.add(pg);
+            }
+            //map£òȥЩûύҳ
+            for(Page pg : pages)
+                fsm().setRoom(pg.getId().getPageNumber(),((HeapPage)pg).getNumEmptySlots()>0);
+            bp.appendPages(tid,this,pages);
         }
-        //֮ǰҿеpageֻҪREAD_ONLY
-        //ҵREAD_WRITE
-        currPg=(HeapPage) bp.getPage(tid,currPg.getId(),Permissions.READ_WRITE);
+    }
 
-        //ɹ
-        //ϸڣжpos<numPages(),ΪһPageɹʧܶpos==numPages()
-        if(currPg.getNumEmptySlots()!=0)
+    /** Look at whether a page has a free slot, without locking it */
+    private static boolean hasRoom(BufferPool bp, TransactionId tid, HeapPageId pid) throws DbException {
+        HeapPage pg=(HeapPage) bp.getPageUnlocked(tid,pid);
+        pg.getLatch().readLock().lock();
+        try
         {
-            currPg.insertTuple(t);
-            currPg.markDirty(true,tid);
-            ans.add(currPg);
+            return pg.getNumEmptySlots()>0;
         }
-        //ļдһҳ
-        else
+        finally
         {
-           int newPos=numPages();
-           HeapPageId newPID=new HeapPageId(getId(),newPos);
-           HeapPage newPg=new HeapPage(newPID,HeapPage.createEmptyPageData());
-           //˼·1Ƚհҳдļͨbppagepageв
-           //Ϊʱڴ治һȽϺ
-           writePage(newPg);//ҳдļ
-           newPg=(HeapPage) bp.getPage(tid,newPID,Permissions.READ_WRITE);//bpлȡļ
-           newPg.insertTuple(t);
-           newPg.markDirty(true,tid);
-           ans.add(newPg);
-           //˼·2pageϺдļ
-           /*newPg.insertTuple(t);
-           newPg.markDirty(true,tid);
-           ans.add(newPg);
-           writePage(newPg);*/
+            pg.getLatch().readLock().unlock();
+            bp.unpinPage(tid,pid);
         }
-        return ans;
     }
 
     // see DbFile.java for javadocs
@@ -170,18 +467,107 @@ public class HeapFile implements DbFile {
         if(pgID.getTableId()!=getId())
             throw new DbException("is not a member of the file");
         int pos=rid.getTupleNumber();
+        if(versioned)
+            return deleteVersion(tid,t);
+        if(bp.isRecordLocking())
+        {
+            //ֻһtuplepageIXinsertTupleByRecordһʱpin
+            bp.lockRecord(tid,rid,true);
+            HeapPage pg=(HeapPage) bp.getPageForRecordUpdate(tid,pgID);
+            pg.getLatch().writeLock().lock();
+            try
+            {
+                pg.deleteTuple(t);
+                pg.markDirty(true,tid);
+                fsm().setRoom(pgID.getPageNumber(),true);
+            }
+            catch (DbException e)
+            {
+                bp.unpinPage(tid,pgID);
+                throw e;
+            }
+            finally
+            {
+                pg.getLatch().writeLock().unlock();
+            }
+            bp.recordChanged(tid,t,false);
+            ans.add(pg);
+            return ans;
+        }
         HeapPage currPage=(HeapPage) bp.getPage(tid,pgID,Permissions.READ_WRITE);
-        currPage.deleteTuple(t);
-        currPage.markDirty(true,tid);
+        currPage.getLatch().writeLock().lock();
+        try
+        {
+            currPage.deleteTuple(t);
+            currPage.markDirty(true,tid);
+            fsm().setRoom(pgID.getPageNumber(),true);
+        }
+        finally
+        {
+            currPage.getLatch().writeLock().unlock();
+            bp.unpinPage(tid,pgID);
+        }
         ans.add(currPage);
         return ans;
         // not necessary for lab1
     }
 
+    /**
+     * Delete a version of a versioned file: it is stamped with tid as its
+     * deleter, and stays on the page for readers that cannot see the delete
+     */
+    private ArrayList<Page> deleteVersion(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException, InterruptedException {
+        BufferPool bp=Database.getBufferPool();
+        RecordId rid=t.getRecordId();
+        int slot=rid.getTupleNumber();
+        long readView=bp.getReadView(tid);
+        //ü¼һɾ߻ûĻύabort
+        bp.lockRecord(tid,rid,true);
+        HeapPage pg=(HeapPage) bp.getPageForRecordUpdate(tid,rid.getPageId());
+        pg.getLatch().writeLock().lock();
+        try
+        {
+            if(!pg.isSlotUsed(slot))
+                throw new DbException("tuple slot is empty");
+            long xmax=pg.getXmax(slot);
+            //ддͻ汾Ѿһtidɾ
+            if(xmax>readView)
+                throw new TransactionAbortedException();
+            if(xmax>0||xmax==HeapPage.uncommitted(tid))
+                throw new DbException("tuple is already deleted");
+            pg.setXmax(slot,HeapPage.uncommitted(tid));
+            pg.markDirty(true,tid);
+        }
+        catch (DbException|TransactionAbortedException e)
+        {
+            bp.unpinPage(tid,pg.getId());
+            throw e;
+        }
+        finally
+        {
+            pg.getLatch().writeLock().unlock();
+        }
+        bp.recordChanged(tid,t,false);
+        ArrayList<Page> ans=new ArrayList<>();
+        ans.add(pg);
+        return ans;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this,tid);
+        return new HeapFileIterator(this,tid,null);
+    }
+
+    /**
+     * Return an iterator over the tuples of this file that decodes only the
+     * fields i with fields[i] set, leaving the others null; see
+     * {@link HeapPage#iterator(TransactionId, long, boolean[])}. If fields
+     * is null, all fields are decoded.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean[] fields) {
+        return new HeapFileIterator(this,tid,fields);
     }
 
     //ΪʲôBtreeFileiteratorõextendsеĵطimplements
@@ -191,12 +577,28 @@ public class HeapFile implements DbFile {
 
         private Iterator<Tuple> it = null;
         private int pgNo;//pgظ
+        private boolean pinned;//pgǷ񻹱pin
         private TransactionId tid;
         private HeapFile f;
+        private long readView;//MVCCֻʱ֮ǰύİ汾
+        private final boolean[] fields;//ֻЩֶΣnullʾȫ
 
-        public HeapFileIterator(HeapFile f, TransactionId tid) {
+        public HeapFileIterator(HeapFile f, TransactionId tid, boolean[] fields) {
             this.f = f;
             this.tid = tid;
+            this.fields = fields;
+        }
+
+        /** ȡһҳMVCC */
+        private HeapPage fetch(int no) throws DbException, TransactionAbortedException, InterruptedException {
+            HeapPageId pid=new HeapPageId(getId(),no);
+            if(versioned)
+                return (HeapPage) Database.getBufferPool().getVersionedPage(tid,pid);
+            return (HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
+        }
+
+        private Iterator<Tuple> tuples(HeapPage p) {
+            return versioned?p.iterator(tid,readView,fields):p.iterator(null,0,fields);
         }
 
         /**
@@ -204,9 +606,18 @@ public class HeapFile implements DbFile {
          */
         public void open() throws DbException, TransactionAbortedException, InterruptedException {
             pgNo=0;
-            HeapPageId pid=new HeapPageId(getId(),0);
-            pg=(HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
-            it = pg.iterator();
+            if(versioned)
+                readView=Database.getBufferPool().getReadView(tid);
+            pg=fetch(0);
+            pinned=true;
+            it = tuples(pg);
+        }
+
+        /** ǰpagetupleѾȡ꣬ŵpin */
+        private void unpinCurrent() {
+            if(pinned)
+                Database.getBufferPool().unpinPage(tid,pg.getId());
+            pinned=false;
         }
 
         @Override
@@ -215,20 +626,24 @@ public class HeapFile implements DbFile {
                 return false;
             if(it.hasNext())
                 return true;
+            //ǰpageȡˣ֮ǰȷŵСbpҲڳλ
+            unpinCurrent();
             //ΪʹhasNextӰ쵱ǰ״̬бcopyһ
             int npgNo=pgNo;
             while(npgNo<numPages()-1)//һpageڵ£ֱҵΪյslot
             {
-                try{//ΪʲôҪtry
-                    HeapPageId pid=new HeapPageId(getId(),++npgNo);
-                    HeapPage npg=(HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
-                    Iterator<Tuple> nit = npg.iterator();
+                try{//fetchInterruptedExceptionhasNext
+                    HeapPage npg=fetch(++npgNo);
+                    Iterator<Tuple> nit = tuples(npg);
+                    //ֻǿһۣһֱpin
+                    Database.getBufferPool().unpinPage(tid,npg.getId());
                     if(nit.hasNext())
                         return true;
                 }
-                catch (Exception e){
-                    e.printStackTrace();
-                    System.exit(1);
+                catch (InterruptedException e){
+                    //жϵ̶̣߳ж״̬
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while reading page "+npgNo);
                 }
             }
             return false;
@@ -242,9 +657,11 @@ public class HeapFile implements DbFile {
                 return it.next();
             while(pgNo<numPages()-1)//һpageڵ£ֱҵΪյslot
             {
-                HeapPageId pid=new HeapPageId(getId(),++pgNo);
-                pg=(HeapPage) Database.getBufferPool().getPage(tid,pid,Permissions.READ_ONLY);
-                it = pg.iterator();
+                //뿪һpageʱŵpin
+                unpinCurrent();
+                pg=fetch(++pgNo);
+                pinned=true;
+                it = tuples(pg);
                 if(it.hasNext())
                     return it.next();
             }
@@ -263,6 +680,8 @@ public class HeapFile implements DbFile {
          * close the iterator
          */
         public void close() {
+            if(pg!=null)
+                unpinCurrent();
             pg=null;
             pgNo=0;
             it = null;
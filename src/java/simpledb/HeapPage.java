@@ -1,14 +1,21 @@
 package simpledb;
 
 import javax.print.attribute.standard.PrinterInfo;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.lang.Math.ceil;
 
 /**
- * Each instance of HeapPage stores data for one page of HeapFiles and 
+ * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page is a view over a frame of the off-heap {@link FrameArena}: the
+ * header and tuple slots stay in their on-disk format in the frame, and
+ * tuples are decoded when they are read.
  *
  * @see HeapFile
  * @see BufferPool
@@ -18,13 +25,25 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    final int headerSize;
+    final int tupleSize;//һslotĴСMVCC汾ͷ
+    final boolean versioned;
+    final ByteBuffer frame;//pageݣheader+slotʹϵĸʽһ
+    ByteBuffer oldFrame;//before image
+    private final Object oldDataLock=new Object();
+    private HeapPage beforeImage=null;//getBeforeImageصpagebefore image˲ؽ
     private boolean dirty=false;
     private TransactionId dirtyTID=null;
+    //page latchpage˳дlatchpage˳жlatch
+    private final ReentrantReadWriteLock latch=new ReentrantReadWriteLock();
+
+    /**
+     * Size of the version header at the start of each slot of a versioned
+     * (MVCC) table: the stamps of the transactions that created and that
+     * deleted the tuple, see {@link #isVisible}.
+     */
+    public static final int VERSION_HEADER = 16;
 
 
     /**
@@ -46,32 +65,27 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.versioned = file instanceof HeapFile && ((HeapFile) file).isVersioned();
+        this.tupleSize = td.getSize() + (versioned ? VERSION_HEADER : 0);
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+
+        //ݿoff-heapframe֮ĶдframeϽ
+        frame = BufferPool.getFrameArena().allocate(this);
+        ByteBuffer dst = frame.duplicate();
+        dst.put(data, 0, Math.min(data.length, dst.remaining()));
+        while (dst.hasRemaining())
+            dst.put((byte) 0);
         setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
-    private int getNumTuples() {        
+    private int getNumTuples() {
         // some code goes here
-        return  (BufferPool.getPageSize()*8) / (td.getSize() * 8 + 1);
+        return  (BufferPool.getPageSize()*8) / (tupleSize * 8 + 1);
     }
 
     /**
@@ -84,17 +98,31 @@ public class HeapPage implements Page {
         //ԭдˣdebug3Сʱ
         //numSlots/8 int numSlots/8.0 С
         //return (int) ceil(numSlots / 8);
-                 
+
     }
-    
+
     /** Return a view of this page before it was modified
-        -- used by recovery */
+        -- used by recovery.
+        The same page is returned until the before image is next set, so
+        callers must not change it; see {@link #copyBeforeImage}. */
     public HeapPage getBeforeImage(){
+        synchronized(oldDataLock)
+        {
+            if (beforeImage == null)
+                beforeImage = copyBeforeImage();
+            return beforeImage;
+        }
+    }
+
+    /** Return a new page holding the before image of this page, for
+        callers that change it or put it in the buffer pool */
+    HeapPage copyBeforeImage(){
         try {
-            byte[] oldDataRef = null;
+            byte[] oldDataRef = new byte[BufferPool.getPageSize()];
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                ByteBuffer src = oldFrame.duplicate();
+                src.get(oldDataRef, 0, Math.min(oldDataRef.length, src.remaining()));
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -104,11 +132,38 @@ public class HeapPage implements Page {
         }
         return null;
     }
-    
+
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        if (oldFrame == null)
+            oldFrame = BufferPool.getFrameArena().allocate(this);
+        //ڸһҳ(¼)ʱҪpage latch
+        latch.readLock().lock();
+        try
+        {
+            oldFrame.duplicate().put(frame.duplicate());
+        }
+        finally
+        {
+            latch.readLock().unlock();
+        }
+        beforeImage = null;
+        }
+    }
+
+    /**
+     * Replace the before image with the contents of image, a page with the
+     * same id. Used under record locking, where a committing transaction
+     * adds its own changes to the before image but not those of others.
+     */
+    void setBeforeImage(HeapPage image) {
+        synchronized(oldDataLock)
+        {
+            if (oldFrame == null)
+                oldFrame = BufferPool.getFrameArena().allocate(this);
+            oldFrame.duplicate().put(image.frame.duplicate());
+            beforeImage = null;
         }
     }
 
@@ -120,37 +175,28 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** Offset in the frame of the given slot */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in the given slot, which must be in use. If fields
+     * is not null, only the fields i with fields[i] set are decoded, and
+     * the others are left null.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
+    private Tuple readTuple(int slotId, boolean[] fields) {
         // read fields in the tuple
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        int off = slotOffset(slotId) + (versioned ? VERSION_HEADER : 0);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (fields == null || fields[j])
+                t.setField(j, type.parse(frame, off));
+            off += type.getLen();
         }
-
         return t;
     }
 
@@ -166,64 +212,18 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+        //frameѾǴ̸ʽֱӿ
+        byte[] data = new byte[BufferPool.getPageSize()];
+        latch.readLock().lock();
+        try
+        {
+            frame.duplicate().get(data, 0, Math.min(data.length, frame.capacity()));
         }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        finally
+        {
+            latch.readLock().unlock();
         }
-
-        return baos.toByteArray();
+        return data;
     }
 
     /**
@@ -250,11 +250,19 @@ public class HeapPage implements Page {
      */
     public void deleteTuple(Tuple t) throws DbException {
         // some code goes here
-        //ɾtuples
         int pos=t.getRecordId().getTupleNumber();
-        if(t.getRecordId().getPageId()!=this.pid||!isSlotUsed(pos))
+        if(!this.pid.equals(t.getRecordId().getPageId())||!isSlotUsed(pos))
             throw new DbException("this tuple is not on this page, or tuple slot is already empty.");
+        clearSlot(pos);
+    }
+
+    /** Empty a slot that is in use */
+    void clearSlot(int pos) {
         markSlotUsed(pos,false);
+        //slotڴȫ0
+        int off=slotOffset(pos);
+        for(int i=0;i<tupleSize;i++)
+            frame.put(off+i,(byte)0);
     }
 
     /**
@@ -273,9 +281,81 @@ public class HeapPage implements Page {
             pos++;
         if(pos==numSlots)//һʧ
             throw new DbException("pos error");
+        insertTuple(t,pos);
+    }
+
+    /**
+     * Adds the specified tuple to the given slot of the page, which must be
+     * empty. Used under record locking, where the caller has locked the
+     * record in that slot, and to put back a deleted tuple on abort.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public void insertTuple(Tuple t, int pos) throws DbException {
+        if(pos<0||pos>=numSlots||isSlotUsed(pos)||!t.getTupleDesc().equals(td))
+            throw new DbException("the slot is in use or tupledesc is mismatch");
+        //tupleлдframeжӦslot
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        byte[] bytes = baos.toByteArray();
+        int off=slotOffset(pos);
+        //MVCCİ汾ͷ㣺°汾ûбκ񴴽ɾ
+        int skip=versioned?VERSION_HEADER:0;
+        for(int i=0;i<tupleSize;i++)
+            frame.put(off+i,i>=skip&&i-skip<bytes.length?bytes[i-skip]:0);
         markSlotUsed(pos,true);
         t.setRecordId(new RecordId(pid,pos));
-        tuples[pos]=t;
+    }
+
+    /** Return true if this page belongs to a versioned (MVCC) HeapFile */
+    public boolean isVersioned() {
+        return versioned;
+    }
+
+    /**
+     * Return the stamp written into versions by a transaction that has not
+     * committed yet. Committed versions carry the commit's sequence number
+     * instead, which is positive; 0 means none.
+     */
+    public static long uncommitted(TransactionId tid) {
+        return -(tid.getId()+1);
+    }
+
+    /** Return the stamp of the transaction that created the version in slot */
+    public long getXmin(int slot) {
+        return frame.getLong(slotOffset(slot));
+    }
+
+    /** Return the stamp of the transaction that deleted the version in slot, or 0 */
+    public long getXmax(int slot) {
+        return frame.getLong(slotOffset(slot)+8);
+    }
+
+    public void setXmin(int slot, long stamp) {
+        frame.putLong(slotOffset(slot),stamp);
+    }
+
+    public void setXmax(int slot, long stamp) {
+        frame.putLong(slotOffset(slot)+8,stamp);
+    }
+
+    /**
+     * Return true if the version in a used slot is visible to tid reading
+     * the database as of commit sequence number readView: it was created by
+     * tid or by a commit up to readView, and not deleted by either.
+     */
+    public boolean isVisible(int slot, TransactionId tid, long readView) {
+        long own=uncommitted(tid);
+        long xmin=getXmin(slot), xmax=getXmax(slot);
+        boolean created=xmin==0||(xmin>0&&xmin<=readView)||xmin==own;
+        boolean deleted=xmax==own||(xmax>0&&xmax<=readView);
+        return created&&!deleted;
     }
 
     /**
@@ -302,15 +382,33 @@ public class HeapPage implements Page {
         return dirtyTID;
     }
 
+    /**
+     * Return the latch of this page: a reader/writer lock that keeps the
+     * in-memory page consistent while it is read or changed. Unlike the
+     * locks of LockManager it belongs to no transaction, is held only for
+     * the few instructions that look at or change the page, and takes no
+     * part in deadlock handling. Latch only pages that are pinned.
+     */
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
+    /**
+     * Returns the number of slots on this page, used or not.
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
         // some code goes here
         int ones=0;
-        for(int i=0;i<getHeaderSize()-1;i++)
-            ones+=oneNum(header[i]);
-        byte temp=header[getHeaderSize()-1];
+        for(int i=0;i<headerSize-1;i++)
+            ones+=oneNum(frame.get(i));
+        byte temp=frame.get(headerSize-1);
         for(int i=0;i<((numSlots%8==0)?8:numSlots%8);i++)
         {
             ones+=(temp%2==0)?0:1;
@@ -335,7 +433,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        byte temp=header[i/8];
+        byte temp=frame.get(i/8);
         temp= (byte) (temp>>i%8);
         return temp%2!=0;
     }
@@ -345,9 +443,9 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
-        byte temp=header[i/8];
+        byte temp=frame.get(i/8);
         temp+=value?1<<(i%8):-1<<(i%8);
-        header[i/8]=temp;
+        frame.put(i/8,temp);
     }
 
     /**
@@ -356,6 +454,26 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        return iterator(null,0);
+    }
+
+    /**
+     * @return an iterator over the versions on this page that are visible
+     * to tid as of readView, see {@link #isVisible}. Writers may be changing
+     * the page meanwhile, so each slot is read under the page latch. On a
+     * page that is not versioned, or if tid is null, every tuple is returned.
+     */
+    public Iterator<Tuple> iterator(TransactionId tid, long readView) {
+        return iterator(tid,readView,null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, long)}, but only the fields i
+     * with fields[i] set are decoded, the projection of a scan; the others
+     * are null in the returned tuples. If fields is null, all are decoded.
+     */
+    public Iterator<Tuple> iterator(TransactionId tid, long readView, boolean[] fields) {
+        final boolean filter=versioned&&tid!=null;
         return new Iterator<Tuple>() {
             private int pos=-1;//¼ǰλ
             private int next;
@@ -363,8 +481,17 @@ public class HeapPage implements Page {
             public boolean hasNext() {
                 next=pos+1;
                 while(next<numSlots) {
-                    if(isSlotUsed(next))
+                    if(!filter&&isSlotUsed(next))
                         return true;
+                    if(filter) {
+                        latch.readLock().lock();
+                        try {
+                            if(isSlotUsed(next)&&isVisible(next,tid,readView))
+                                return true;
+                        } finally {
+                            latch.readLock().unlock();
+                        }
+                    }
                     next++;
                 }
                 return false;
@@ -376,11 +503,17 @@ public class HeapPage implements Page {
                     throw new NoSuchElementException();
                 }
                 pos=next;
-                return tuples[pos];
+                if(!filter)
+                    return readTuple(pos,fields);//õʱŽ
+                latch.readLock().lock();
+                try {
+                    return readTuple(pos,fields);
+                } finally {
+                    latch.readLock().unlock();
+                }
             }
         };
     }
 
 
 }
-
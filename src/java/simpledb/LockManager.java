@@ -0,0 +1,786 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager keeps the strict two-phase locks used by the BufferPool.
+ * <p>
+ * Locks are taken at two granularities. Before locking a page, a
+ * transaction takes an intention lock on its table (keyed by
+ * {@link PageId#getTableId}, i.e. {@link DbFile#getId}): IS before a
+ * shared page lock and IX before an exclusive one. A table lock in mode
+ * S, SIX or X covers the pages of the table, so no page locks are taken
+ * under it. Once a transaction holds more than the escalation threshold
+ * of page locks in one table (see {@link #setEscalationThreshold}), they
+ * are replaced by a single S or X lock on the table, if that can be
+ * granted without waiting; otherwise escalation is tried again on the
+ * next page.
+ * <p>
+ * Below pages there is a third level for updates under record locking
+ * (see {@link #acquireRecordLock}): a page locked IX may have single
+ * records of it locked X by several transactions at once, while readers,
+ * which lock the whole page S, wait for them.
+ * <p>
+ * Every locked page or table has a FIFO queue of pending requests. A transaction
+ * whose request cannot be granted parks its thread and is unparked when a
+ * holder releases the page (or a request ahead of it leaves the queue),
+ * instead of polling.
+ * <p>
+ * Requests come in three flavours: shared, exclusive, and upgrade (a
+ * transaction that already holds a shared lock asking for an exclusive
+ * one). Upgrades are queued ahead of ordinary requests, since the
+ * upgrading transaction already holds the page and everyone behind it
+ * would have to wait for it anyway.
+ * <p>
+ * The lock table is split into stripes by {@link PageId#hashCode}, each
+ * guarded by its own latch, so that requests on unrelated pages do not
+ * serialize on a single monitor. The set of pages each transaction holds
+ * is kept in concurrent sets outside the stripes.
+ * <p>
+ * Deadlocks are found with a waits-for graph: while a request is blocked,
+ * its transaction has an edge to every holder and earlier queued request
+ * it conflicts with. The graph is checked for a cycle either each time a
+ * request blocks, or periodically by a background detector thread (see
+ * {@link #setDetectionInterval}). The youngest transaction on a cycle,
+ * i.e. the one with the largest {@link TransactionId#getId}, is aborted.
+ * The graph has a latch of its own, which is always taken after a stripe
+ * latch and never the other way around.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them by
+ * timestamps (see {@link #setDeadlockPolicy}), using the order of
+ * {@link TransactionId#getId} as age. Under wait-die a transaction only
+ * waits for younger ones and aborts rather than wait for an older one;
+ * under wound-wait an older transaction aborts ("wounds") the younger
+ * ones in its way and a younger one waits. Either way no waits-for graph
+ * is kept. A transaction that is retried with the same TransactionId
+ * keeps its age, and so is eventually the oldest and cannot starve.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** How deadlocks are dealt with, see {@link #setDeadlockPolicy}. */
+    public enum DeadlockPolicy {
+        /** Wait for anyone, and abort the youngest transaction on a cycle */
+        DETECT,
+        /** Abort a transaction that would wait for an older one */
+        WAIT_DIE,
+        /** Abort the younger transactions an older one would wait for */
+        WOUND_WAIT
+    }
+
+    /**
+     * The modes a transaction may hold a lock in. Tables and pages may be
+     * locked in any mode; records only X.
+     */
+    public enum LockMode {
+        IS, IX, S, SIX, X;
+
+        // COMPATIBLE[a][b]: a and b may be held by different transactions at once
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        public boolean compatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** Return true if holding this mode grants everything other does. */
+        public boolean covers(LockMode other) {
+            return join(other) == this;
+        }
+
+        /** The weakest mode that grants both this mode and other. */
+        public LockMode join(LockMode other) {
+            if (this == other)
+                return this;
+            if (this == X || other == X)
+                return X;
+            if (this == IS)
+                return other;
+            if (other == IS)
+                return this;
+            // two different modes out of IX, S and SIX
+            return SIX;
+        }
+    }
+
+    /** Default number of page locks in one table above which they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** Default number of stripes the lock table is split into. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /** The key of a table in the lock table, next to the PageIds of its pages. */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return tableId * 31 + 7;
+        }
+    }
+
+    /** A request waiting in the queue of a page or table. */
+    private static class LockRequest {
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean upgrade;
+        final Thread thread = Thread.currentThread();
+
+        LockRequest(TransactionId tid, LockMode mode, boolean upgrade) {
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+
+        boolean conflictsWith(LockMode other) {
+            return !mode.compatibleWith(other);
+        }
+    }
+
+    /** Lock state of a single page or table: who holds it and who is waiting. */
+    private static class ResourceLock {
+        final HashMap<TransactionId, LockMode> holders = new HashMap<>();
+        final LinkedList<LockRequest> waiters = new LinkedList<>();
+
+        boolean isFree() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+
+        /** Let every queued request re-check whether it can be granted. */
+        void wakeWaiters() {
+            for (LockRequest r : waiters)
+                LockSupport.unpark(r.thread);
+        }
+    }
+
+    /** One partition of the lock table. */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<Object, ResourceLock> locks = new HashMap<>();
+    }
+
+    /** The locks a transaction holds. */
+    private static class TxnLocks {
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+        /** Pages held in an intention mode, IX or SIX, for record locks below them. */
+        final Set<PageId> intentionPages = ConcurrentHashMap.newKeySet();
+        /** Locked records, by page. */
+        final ConcurrentHashMap<PageId, Set<RecordId>> records = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<Integer, LockMode> tables = new ConcurrentHashMap<>();
+        /** Number of page locks held in each table, for escalation. */
+        final ConcurrentHashMap<Integer, Integer> pagesPerTable = new ConcurrentHashMap<>();
+    }
+
+    private final Stripe[] stripes;
+    private final ConcurrentHashMap<TransactionId, TxnLocks> txnLocks = new ConcurrentHashMap<>();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    /** Guards the waits-for graph and everything below. */
+    private final Object graphLatch = new Object();
+    /** Waits-for graph: each blocked transaction and the transactions it waits on. */
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor = new HashMap<>();
+    /** The request each blocked transaction is parked on, so that a victim can be woken. */
+    private final HashMap<TransactionId, LockRequest> waitingOn = new HashMap<>();
+    /** Blocked transactions chosen as deadlock victims that have not woken up yet. */
+    private final HashSet<TransactionId> victims = new HashSet<>();
+
+    private long detectionInterval = 0;
+    private Thread detector = null;
+    private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+
+    private final Metrics.Counter lockWaits;
+    private final Metrics.Histogram lockWaitMicros;
+    private final Metrics.Counter deadlockAborts;
+    private final Metrics.Counter escalations;
+
+    public LockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param numStripes number of independently latched partitions of the
+     *     lock table
+     */
+    public LockManager(int numStripes) {
+        if (numStripes <= 0)
+            throw new IllegalArgumentException("need at least one stripe");
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe();
+        Metrics metrics = Database.getMetrics();
+        lockWaits = metrics.counter("simpledb_lock_waits_total",
+                "Lock requests that had to block");
+        lockWaitMicros = metrics.histogram("simpledb_lock_wait_micros",
+                "Time blocked lock requests waited, in microseconds");
+        deadlockAborts = metrics.counter("simpledb_deadlock_aborts_total",
+                "Transactions aborted to break or prevent a deadlock");
+        escalations = metrics.counter("simpledb_lock_escalations_total",
+                "Page locks replaced by a lock on their table");
+    }
+
+    private Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Set how deadlocks are detected. With an interval of 0 (the default)
+     * the waits-for graph is checked every time a request blocks; with a
+     * positive interval a daemon thread checks the whole graph every
+     * interval ms and blocked requests do no detection of their own.
+     *
+     * @param interval detection interval in ms, or 0 to detect on enqueue
+     */
+    public void setDetectionInterval(long interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("negative detection interval");
+        synchronized (graphLatch) {
+            detectionInterval = interval;
+            if (detector != null) {
+                detector.interrupt();
+                detector = null;
+            }
+            if (interval > 0) {
+                detector = new Thread(this::runDetector, "deadlock-detector");
+                detector.setDaemon(true);
+                detector.start();
+            }
+        }
+    }
+
+    /**
+     * Choose between detecting deadlocks (the default) and preventing them
+     * with wait-die or wound-wait. Should be set while no transaction is
+     * waiting for a lock.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("no deadlock policy");
+        this.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    private void runDetector() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            long interval;
+            synchronized (graphLatch) {
+                if (detector != self)
+                    return;
+                interval = detectionInterval;
+                TransactionId victim;
+                while ((victim = chooseVictim(null)) != null)
+                    abortWaiter(victim);
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Set how many page locks a transaction may hold in one table before
+     * they are escalated to a lock on the table.
+     *
+     * @param pages the threshold, or 0 to never escalate
+     */
+    public void setEscalationThreshold(int pages) {
+        if (pages < 0)
+            throw new IllegalArgumentException("negative escalation threshold");
+        escalationThreshold = pages;
+    }
+
+    /**
+     * Acquire a lock on the specified page, blocking until it is granted.
+     * READ_ONLY maps to a shared lock and READ_WRITE to an exclusive one;
+     * a shared holder asking for READ_WRITE is upgraded. The matching
+     * intention lock on the page's table is taken first, and nothing more
+     * is needed if the transaction's lock on the table already covers the
+     * page.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen
+     *     as the victim of a deadlock while waiting for the lock
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, InterruptedException {
+        acquirePageLock(tid, pid, perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S, true);
+    }
+
+    /**
+     * Like {@link #acquireLock}, but gives up instead of waiting for the
+     * page if another transaction holds it. The intention lock on the table
+     * is still waited for.
+     *
+     * @return true if tid holds the lock on return
+     */
+    public boolean tryAcquireLock(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, InterruptedException {
+        return acquirePageLock(tid, pid, perm == Permissions.READ_WRITE ? LockMode.X : LockMode.S, false);
+    }
+
+    /**
+     * Lock a page for updates under record locks: the page is locked IX,
+     * and its table IX, so that other transactions may lock other records
+     * of the page at the same time.
+     */
+    public void acquireIntentionLock(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, InterruptedException {
+        acquirePageLock(tid, pid, LockMode.IX, true);
+    }
+
+    /**
+     * Lock a record X, after locking its page with
+     * {@link #acquireIntentionLock}. Nothing more is needed if tid's lock on
+     * the page or the table already covers the record.
+     *
+     * @param wait whether to block until the lock can be granted
+     * @return false if wait is false and another transaction holds the record
+     */
+    public boolean acquireRecordLock(TransactionId tid, RecordId rid, boolean wait)
+            throws TransactionAbortedException, InterruptedException {
+        PageId pid = rid.getPageId();
+        acquirePageLock(tid, pid, LockMode.IX, true);
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn.tables.get(pid.getTableId()) == LockMode.X || !txn.intentionPages.contains(pid))
+            return true;
+        Set<RecordId> rids = txn.records.get(pid);
+        if (rids != null && rids.contains(rid))
+            return true;
+        if (!lock(tid, rid, LockMode.X, wait))
+            return false;
+        txn.records.computeIfAbsent(pid, k -> ConcurrentHashMap.newKeySet()).add(rid);
+        return true;
+    }
+
+    /** @return true if tid holds the page lock, which is always the case if wait */
+    private boolean acquirePageLock(TransactionId tid, PageId pid, LockMode mode, boolean wait)
+            throws TransactionAbortedException, InterruptedException {
+        int tableId = pid.getTableId();
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null)
+            txn = txnLocks.computeIfAbsent(tid, k -> new TxnLocks());
+        LockMode table = txn.tables.get(tableId);
+        // only S, SIX and X cover the pages of a table, and only X covers writes
+        if (table == LockMode.X || (mode == LockMode.S && table != null && table.covers(LockMode.S)))
+            return true;
+
+        LockMode intention = mode == LockMode.S ? LockMode.IS : LockMode.IX;
+        if (table == null || !table.covers(intention)) {
+            LockMode want = table == null ? intention : table.join(intention);
+            lock(tid, new TableKey(tableId), want, true);
+            txn.tables.put(tableId, want);
+        }
+        if (lock(tid, pid, mode, wait)) {
+            if (mode == LockMode.X)
+                txn.intentionPages.remove(pid);
+            else if (mode == LockMode.IX || txn.intentionPages.contains(pid))
+                txn.intentionPages.add(pid);// S on top of IX makes SIX
+            if (txn.pages.add(pid)) {
+                int n = txn.pagesPerTable.merge(tableId, 1, Integer::sum);
+                int threshold = escalationThreshold;
+                if (threshold > 0 && n > threshold)
+                    escalate(tid, txn, tableId);
+            }
+            return true;
+        }
+        return wait || holds(tid, pid, mode);
+    }
+
+    /** Return true if tid holds a lock on key at least as strong as mode */
+    private boolean holds(TransactionId tid, Object key, LockMode mode) {
+        Stripe stripe = stripeFor(key);
+        stripe.latch.lock();
+        try {
+            ResourceLock lock = stripe.locks.get(key);
+            LockMode held = lock == null ? null : lock.holders.get(tid);
+            return held != null && held.covers(mode);
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Try to replace tid's page locks in a table by an S lock on the table,
+     * or an X lock if it has written to the table. Gives up if the table
+     * lock cannot be granted at once.
+     */
+    private void escalate(TransactionId tid, TxnLocks txn, int tableId)
+            throws TransactionAbortedException, InterruptedException {
+        LockMode held = txn.tables.get(tableId);
+        LockMode want = held == LockMode.IS ? LockMode.S : LockMode.X;
+        if (!lock(tid, new TableKey(tableId), want, false))
+            return;
+        txn.tables.put(tableId, want);
+        for (Iterator<Map.Entry<PageId, Set<RecordId>>> it = txn.records.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<PageId, Set<RecordId>> e = it.next();
+            if (e.getKey().getTableId() == tableId) {
+                it.remove();
+                for (RecordId rid : e.getValue())
+                    unlock(tid, rid);
+            }
+        }
+        for (Iterator<PageId> it = txn.pages.iterator(); it.hasNext();) {
+            PageId pid = it.next();
+            if (pid.getTableId() == tableId) {
+                it.remove();
+                txn.intentionPages.remove(pid);
+                unlock(tid, pid);
+            }
+        }
+        txn.pagesPerTable.remove(tableId);
+        escalations.inc();
+    }
+
+    /**
+     * Lock a table, page or record in the given mode, upgrading tid's current lock
+     * on it if it has one.
+     *
+     * @param wait whether to block until the lock can be granted
+     * @return true if the lock is newly granted or upgraded, false if tid
+     *     already held it in a mode at least as strong, or if wait is false
+     *     and the lock cannot be granted now
+     */
+    private boolean lock(TransactionId tid, Object key, LockMode mode, boolean wait)
+            throws TransactionAbortedException, InterruptedException {
+        Stripe stripe = stripeFor(key);
+        stripe.latch.lock();
+        try {
+            ResourceLock lock = stripe.locks.get(key);
+            if (lock == null) {
+                lock = new ResourceLock();
+                stripe.locks.put(key, lock);
+            }
+            LockMode held = lock.holders.get(tid);
+            if (held != null && held.covers(mode))
+                return false;
+
+            LockRequest req = new LockRequest(tid, held == null ? mode : held.join(mode), held != null);
+            enqueue(lock, req);
+            boolean granted = false;
+            long waitStart = 0;
+            try {
+                while (true) {
+                    Set<TransactionId> blockers = getBlockers(lock, req);
+                    synchronized (graphLatch) {
+                        if (victims.contains(tid)) {
+                            deadlockAborts.inc();
+                            throw new TransactionAbortedException();
+                        }
+                        if (blockers.isEmpty())
+                            break;
+                        if (!wait)
+                            return false;
+                        DeadlockPolicy p = policy;
+                        if (p == DeadlockPolicy.DETECT)
+                            waitsFor.put(tid, blockers);
+                        else
+                            preventDeadlock(p, tid, blockers);
+                        waitingOn.put(tid, req);
+                        if (p == DeadlockPolicy.DETECT && detectionInterval == 0) {
+                            TransactionId victim = chooseVictim(tid);
+                            if (tid.equals(victim)) {
+                                deadlockAborts.inc();
+                                throw new TransactionAbortedException();
+                            }
+                            if (victim != null)
+                                abortWaiter(victim);
+                        }
+                    }
+                    if (waitStart == 0) {
+                        waitStart = System.nanoTime();
+                        lockWaits.inc();
+                    }
+                    // an unpark that slips in before park() is not lost,
+                    // park() then returns straight away
+                    stripe.latch.unlock();
+                    try {
+                        LockSupport.park(this);
+                    } finally {
+                        stripe.latch.lock();
+                    }
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                }
+                lock.holders.put(tid, req.mode);
+                granted = true;
+            } finally {
+                if (waitStart != 0)
+                    lockWaitMicros.record((System.nanoTime() - waitStart) / 1000);
+                lock.waiters.remove(req);
+                synchronized (graphLatch) {
+                    waitsFor.remove(tid);
+                    waitingOn.remove(tid);
+                    // a wound that came in as the lock was granted still counts
+                    if (!granted || policy == DeadlockPolicy.DETECT)
+                        victims.remove(tid);
+                    if (!granted)
+                        forgetBlocker(lock, tid);
+                }
+                // the queue changed, so whoever was behind us may proceed now
+                lock.wakeWaiters();
+                if (!granted && lock.isFree())
+                    stripe.locks.remove(key);
+            }
+            return true;
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /** Upgrades jump ahead of ordinary requests but stay in FIFO order among themselves. */
+    private void enqueue(ResourceLock lock, LockRequest req) {
+        if (!req.upgrade) {
+            lock.waiters.addLast(req);
+            return;
+        }
+        int pos = 0;
+        for (LockRequest r : lock.waiters) {
+            if (!r.upgrade)
+                break;
+            pos++;
+        }
+        lock.waiters.add(pos, req);
+    }
+
+    /**
+     * Return the transactions req has to wait for: every other holder it
+     * is incompatible with and every conflicting request queued ahead of
+     * it. The request is grantable when this is empty.
+     */
+    private Set<TransactionId> getBlockers(ResourceLock lock, LockRequest req) {
+        Set<TransactionId> blockers = new HashSet<>();
+        for (LockRequest r : lock.waiters) {
+            if (r == req)
+                break;
+            if (req.conflictsWith(r.mode))
+                blockers.add(r.tid);
+        }
+        for (Map.Entry<TransactionId, LockMode> e : lock.holders.entrySet()) {
+            if (!e.getKey().equals(req.tid) && req.conflictsWith(e.getValue()))
+                blockers.add(e.getKey());
+        }
+        return blockers;
+    }
+
+    /**
+     * Look for a cycle in the waits-for graph and return its youngest
+     * transaction, or null if there is none. Transactions already chosen
+     * as victims are ignored, since they are about to give up their locks.
+     * Must be called holding graphLatch.
+     *
+     * @param from only consider cycles reachable from this transaction,
+     *     or null to search the whole graph
+     */
+    private TransactionId chooseVictim(TransactionId from) {
+        Set<TransactionId> visited = new HashSet<>();
+        Collection<TransactionId> roots = from == null
+                ? new ArrayList<>(waitsFor.keySet()) : Collections.singleton(from);
+        for (TransactionId root : roots) {
+            List<TransactionId> cycle = findCycle(root, new ArrayList<>(), visited);
+            if (cycle == null)
+                continue;
+            TransactionId youngest = null;
+            for (TransactionId t : cycle) {
+                if (youngest == null || t.getId() > youngest.getId())
+                    youngest = t;
+            }
+            return youngest;
+        }
+        return null;
+    }
+
+    /** Depth-first search along waits-for edges; returns the cycle closed by a back edge. */
+    private List<TransactionId> findCycle(TransactionId t, List<TransactionId> path, Set<TransactionId> visited) {
+        int pos = path.indexOf(t);
+        if (pos >= 0)
+            return path.subList(pos, path.size());
+        if (!visited.add(t) || victims.contains(t))
+            return null;
+        Set<TransactionId> next = waitsFor.get(t);
+        if (next == null)
+            return null;
+        path.add(t);
+        for (TransactionId n : next) {
+            List<TransactionId> cycle = findCycle(n, path, visited);
+            if (cycle != null)
+                return cycle;
+        }
+        path.remove(path.size() - 1);
+        return null;
+    }
+
+    /**
+     * Drop the edges from the waiters of a page or table to tid once tid
+     * stops holding or waiting for it, so that a detection pass running
+     * before the waiters wake up does not see a cycle that is already gone.
+     * Must be called holding the lock's stripe latch and graphLatch.
+     */
+    private void forgetBlocker(ResourceLock lock, TransactionId tid) {
+        for (LockRequest r : lock.waiters) {
+            Set<TransactionId> blockers = waitsFor.get(r.tid);
+            if (blockers != null)
+                blockers.remove(tid);
+        }
+    }
+
+    /**
+     * Apply wait-die or wound-wait before tid waits for blockers: either
+     * abort tid, or wound the younger blockers so that they abort. Must be
+     * called holding graphLatch.
+     */
+    private void preventDeadlock(DeadlockPolicy p, TransactionId tid, Set<TransactionId> blockers)
+            throws TransactionAbortedException {
+        for (TransactionId b : blockers) {
+            boolean older = b.getId() < tid.getId();
+            if (p == DeadlockPolicy.WAIT_DIE && older) {
+                deadlockAborts.inc();
+                throw new TransactionAbortedException();
+            }
+            if (p == DeadlockPolicy.WOUND_WAIT && !older)
+                abortWaiter(b);
+        }
+    }
+
+    /**
+     * Mark a transaction as a deadlock victim, and wake it if it is blocked
+     * so it can abort. One that is running aborts at its next lock request,
+     * or keeps its locks until it completes. Needs only graphLatch, since
+     * unparking takes no lock.
+     */
+    private void abortWaiter(TransactionId victim) {
+        victims.add(victim);
+        LockRequest r = waitingOn.get(victim);
+        if (r != null)
+            LockSupport.unpark(r.thread);
+    }
+
+    /**
+     * Release the lock tid holds on pid, waking any transaction waiting
+     * for the page. Does nothing if tid does not hold a lock on the page
+     * itself, e.g. because it is covered by a lock on the table, or if it
+     * still holds record locks on the page.
+     */
+    public void releaseLock(TransactionId tid, PageId pid) {
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null || txn.records.containsKey(pid) || !txn.pages.remove(pid))
+            return;
+        txn.intentionPages.remove(pid);
+        txn.pagesPerTable.computeIfPresent(pid.getTableId(), (t, n) -> n > 1 ? n - 1 : null);
+        unlock(tid, pid);
+    }
+
+    /** Release every lock held by tid: records, then pages, then tables. */
+    public void releaseAllLocks(TransactionId tid) {
+        synchronized (graphLatch) {
+            victims.remove(tid);// wounded while running, but done anyway
+        }
+        TxnLocks txn = txnLocks.remove(tid);
+        if (txn == null)
+            return;
+        for (Set<RecordId> rids : txn.records.values())
+            for (RecordId rid : rids)
+                unlock(tid, rid);
+        for (PageId pid : txn.pages)
+            unlock(tid, pid);
+        for (Integer tableId : txn.tables.keySet())
+            unlock(tid, new TableKey(tableId));
+    }
+
+    private void unlock(TransactionId tid, Object key) {
+        Stripe stripe = stripeFor(key);
+        stripe.latch.lock();
+        try {
+            ResourceLock lock = stripe.locks.get(key);
+            if (lock == null || lock.holders.remove(tid) == null)
+                return;
+            synchronized (graphLatch) {
+                forgetBlocker(lock, tid);
+            }
+            if (lock.isFree())
+                stripe.locks.remove(key);
+            else
+                lock.wakeWaiters();
+        } finally {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Return true if tid holds a lock (of either mode) on pid, or a lock
+     * on its table that covers the page.
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null)
+            return false;
+        if (txn.pages.contains(pid))
+            return true;
+        LockMode table = txn.tables.get(pid.getTableId());
+        return table != null && table.covers(LockMode.S);
+    }
+
+    /**
+     * Return a snapshot of the pages tid currently holds page locks on.
+     * Pages covered by a lock on their table are not included.
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null)
+            return new HashSet<PageId>();
+        return new HashSet<PageId>(txn.pages);
+    }
+
+    /**
+     * Return the pages tid holds in an intention mode, i.e. that other
+     * transactions may be updating records of at the same time.
+     */
+    public Set<PageId> getIntentionLockedPages(TransactionId tid) {
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn == null)
+            return new HashSet<PageId>();
+        return new HashSet<PageId>(txn.intentionPages);
+    }
+
+    /** Return the mode tid holds the lock on a table in, or null if none. */
+    public LockMode getTableLock(TransactionId tid, int tableId) {
+        TxnLocks txn = txnLocks.get(tid);
+        return txn == null ? null : txn.tables.get(tableId);
+    }
+
+    /** Return the tables tid holds an X lock on. */
+    public Set<Integer> getExclusiveTables(TransactionId tid) {
+        Set<Integer> tables = new HashSet<Integer>();
+        TxnLocks txn = txnLocks.get(tid);
+        if (txn != null) {
+            for (Map.Entry<Integer, LockMode> e : txn.tables.entrySet())
+                if (e.getValue() == LockMode.X)
+                    tables.add(e.getKey());
+        }
+        return tables;
+    }
+}
@@ -271,6 +271,54 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Work out which fields of a table the plan reads, so that its scan
+     *  decodes only those; see {@link SeqScan#setProjection}.
+     *  @param alias the alias of the table in the plan
+     *  @param td the TupleDesc of the table
+     *  @return a mask with the fields the filters, joins, select list,
+     *    aggregate, GROUP BY and ORDER BY of the plan refer to, or null if
+     *    they refer to all of them, to * or to an unknown field
+     */
+    private boolean[] fieldsUsed(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        names.add(aggField);
+        names.add(groupByField);
+        names.add(oByField);
+
+        boolean[] used = new boolean[td.numFields()];
+        int count = 0;
+        for (String name : names) {
+            if (name == null)
+                continue;
+            if (name.equals("null.*"))
+                return null;
+            String[] parts = name.split("[.]");
+            if (parts.length != 2 || !parts[0].equals(alias))
+                continue;
+            if (parts[1].equals("*"))
+                return null;
+            int i;
+            try {
+                i = td.fieldNameToIndex(parts[1]);
+            } catch (NoSuchElementException e) {
+                return null;  // reported when the plan is built
+            }
+            if (!used[i]) {
+                used[i] = true;
+                count++;
+            }
+        }
+        return count == used.length ? null : used;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -298,7 +346,8 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
+            ss.setProjection(fieldsUsed(table.alias, Database.getCatalog().getTupleDesc(table.t)));
+
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
@@ -0,0 +1,67 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Least (or most) recently used eviction. Resident pages are kept on a
+ * recency list; a hit moves the page to the front and eviction takes the
+ * first evictable page from the back (LRU) or the front (MRU).
+ */
+public class LruEviction implements EvictionPolicy {
+
+    private final boolean mru;
+    private final HashMap<PageId, PageList.Node> nodes = new HashMap<>();
+    private final PageList recency = new PageList();
+
+    /**
+     * @param mru evict the most recently used page instead of the least
+     *     recently used one
+     */
+    public LruEviction(boolean mru) {
+        this.mru = mru;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        PageList.Node n = nodes.get(pid);
+        if (n != null) {
+            recency.moveToFront(n);
+            return;
+        }
+        n = new PageList.Node(pid);
+        nodes.put(pid, n);
+        recency.addFirst(n);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        PageList.Node n = nodes.get(pid);
+        if (n != null)
+            recency.moveToFront(n);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        PageList.Node n = nodes.remove(pid);
+        if (n != null)
+            recency.remove(n);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        PageList.Node n = mru ? recency.head() : recency.tail();
+        while (n != null && !evictable.test(n.pid))
+            n = mru ? n.next : n.prev;
+        if (n == null)
+            return null;
+        recency.remove(n);
+        nodes.remove(n.pid);
+        return n.pid;
+    }
+
+    public synchronized List<PageId> pagesByRecency() {
+        ArrayList<PageId> pages = new ArrayList<>(nodes.size());
+        for (PageList.Node n = recency.head(); n != null; n = n.next)
+            pages.add(n.pid);
+        return pages;
+    }
+}
@@ -0,0 +1,206 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K eviction (O'Neil et al.). The victim is the page whose K-th most
+ * recent access lies furthest in the past; pages referenced fewer than K
+ * times count as infinitely old and go first, least recently used first.
+ * This keeps pages touched once by a scan from pushing out pages that
+ * are used over and over.
+ * <p>
+ * Pages live in frames with a ring of their last K access times, and the
+ * frames are ordered by that key in an indexed binary heap. A hit updates
+ * the frame in place and sifts it down, so it allocates nothing; hits
+ * and evictions are O(log n).
+ */
+public class LruKEviction implements EvictionPolicy {
+
+    /** Keys of pages with fewer than K accesses are pushed below every real timestamp. */
+    private static final long UNDER_K = Long.MIN_VALUE / 2;
+
+    private final int k;
+    private final HashMap<PageId, Integer> slots = new HashMap<>();
+    private PageId[] frames;
+    /** Last k access times of each frame, a ring per frame. */
+    private long[] history;
+    private int[] refs;
+    private long[] key;
+    /** heap[i] is a frame; pos[frame] is its index in heap. */
+    private int[] heap, pos;
+    private int heapSize;
+    private int[] free;
+    private int freeTop;
+    private long clock;
+    /** Frames popped during eviction because they were not evictable. */
+    private int[] skipped;
+
+    /**
+     * @param k number of past accesses to consider
+     * @param capacity initial number of frames; grows as needed
+     */
+    public LruKEviction(int k, int capacity) {
+        if (k < 1)
+            throw new IllegalArgumentException("k must be positive");
+        this.k = k;
+        capacity = Math.max(capacity, 1);
+        frames = new PageId[capacity];
+        history = new long[capacity * k];
+        refs = new int[capacity];
+        key = new long[capacity];
+        heap = new int[capacity];
+        pos = new int[capacity];
+        skipped = new int[capacity];
+        free = new int[capacity];
+        for (int i = capacity - 1; i >= 0; i--)
+            free[freeTop++] = i;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer s = slots.get(pid);
+        if (s != null) {
+            touch(s);
+            return;
+        }
+        if (freeTop == 0)
+            grow();
+        int f = free[--freeTop];
+        frames[f] = pid;
+        refs[f] = 0;
+        slots.put(pid, f);
+        record(f);
+        pos[f] = heapSize;
+        heap[heapSize++] = f;
+        siftUp(pos[f]);
+    }
+
+    private void grow() {
+        int n = frames.length;
+        frames = Arrays.copyOf(frames, n * 2);
+        history = Arrays.copyOf(history, n * 2 * k);
+        refs = Arrays.copyOf(refs, n * 2);
+        key = Arrays.copyOf(key, n * 2);
+        heap = Arrays.copyOf(heap, n * 2);
+        pos = Arrays.copyOf(pos, n * 2);
+        skipped = new int[n * 2];
+        free = new int[n * 2];
+        for (int i = n * 2 - 1; i >= n; i--)
+            free[freeTop++] = i;
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer s = slots.get(pid);
+        if (s != null)
+            touch(s);
+    }
+
+    private void touch(int f) {
+        record(f);
+        // keys only grow, so the frame can only move down
+        siftDown(pos[f]);
+    }
+
+    /** Append the current time to f's history and recompute its key. */
+    private void record(int f) {
+        long now = ++clock;
+        history[f * k + refs[f] % k] = now;
+        refs[f]++;
+        if (refs[f] < k)
+            key[f] = UNDER_K + now;
+        else
+            key[f] = history[f * k + refs[f] % k]; // oldest entry of the ring
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer s = slots.remove(pid);
+        if (s == null)
+            return;
+        removeAt(pos[s]);
+        frames[s] = null;
+        free[freeTop++] = s;
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        int nskipped = 0;
+        PageId victim = null;
+        while (heapSize > 0) {
+            int f = heap[0];
+            removeAt(0);
+            if (evictable.test(frames[f])) {
+                victim = frames[f];
+                slots.remove(victim);
+                frames[f] = null;
+                free[freeTop++] = f;
+                break;
+            }
+            skipped[nskipped++] = f;
+        }
+        for (int i = 0; i < nskipped; i++) {
+            int f = skipped[i];
+            pos[f] = heapSize;
+            heap[heapSize++] = f;
+            siftUp(pos[f]);
+        }
+        return victim;
+    }
+
+    /** Ordered by the time of the last access, not the K-th. */
+    public synchronized List<PageId> pagesByRecency() {
+        ArrayList<Integer> fs = new ArrayList<>(slots.values());
+        fs.sort((a, b) -> Long.compare(lastAccess(b), lastAccess(a)));
+        ArrayList<PageId> pages = new ArrayList<>(fs.size());
+        for (int f : fs)
+            pages.add(frames[f]);
+        return pages;
+    }
+
+    private long lastAccess(int f) {
+        return history[f * k + (refs[f] - 1) % k];
+    }
+
+    private void removeAt(int i) {
+        int last = heap[--heapSize];
+        if (i == heapSize)
+            return;
+        heap[i] = last;
+        pos[last] = i;
+        siftDown(i);
+        siftUp(pos[last]);
+    }
+
+    private void siftUp(int i) {
+        int f = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (key[heap[parent]] <= key[f])
+                break;
+            heap[i] = heap[parent];
+            pos[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = f;
+        pos[f] = i;
+    }
+
+    private void siftDown(int i) {
+        int f = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize)
+                break;
+            if (child + 1 < heapSize && key[heap[child + 1]] < key[heap[child]])
+                child++;
+            if (key[f] <= key[heap[child]])
+                break;
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = f;
+        pos[f] = i;
+    }
+}
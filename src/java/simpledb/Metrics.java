@@ -0,0 +1,331 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.*;
+
+/**
+ * Metrics is a registry of named counters, gauges and histograms that
+ * describe what the buffer pool and the lock manager are doing. Counters
+ * and histograms are built on LongAdder, so updating them from many
+ * threads costs about as much as an uncontended increment.
+ * <p>
+ * The registry is exposed as the JMX MBean {@code simpledb:type=Metrics}
+ * (see {@link #registerMBean}), and can be written out in the Prometheus
+ * text format, on demand with {@link #writePrometheus} or periodically to
+ * a file with {@link #setDumpFile}.
+ * <p>
+ * A metric is identified by its name and an optional label, e.g.
+ * {@code simpledb_file_pages_read_total{table="3"}}. Asking for a metric
+ * that already exists returns the existing one.
+ *
+ * @Threadsafe
+ */
+public class Metrics {
+
+    /** A monotonically increasing count */
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * A distribution of non-negative values, in buckets whose upper bounds
+     * are the powers of two up to 2^(BUCKETS-2), plus one for larger values
+     */
+    public static class Histogram {
+        static final int BUCKETS = 32;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        public void record(long value) {
+            if (value < 0)
+                value = 0;
+            // smallest i with value <= 2^i
+            int i = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+            buckets[Math.min(i, BUCKETS - 1)].increment();
+            count.increment();
+            sum.add(value);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /** Upper bound of bucket i, or Long.MAX_VALUE for the last one */
+        static long bound(int i) {
+            return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final String label;
+        final String help;
+        final Object metric;// Counter, Histogram or LongSupplier
+
+        Entry(String name, String label, String help, Object metric) {
+            this.name = name;
+            this.label = label;
+            this.help = help;
+            this.metric = metric;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private long dumpInterval = 0;
+    private File dumpFile = null;
+    private Thread dumper = null;
+
+    /** Key of a metric in entries, which is also its name in the output */
+    private static String key(String name, String labelName, String labelValue) {
+        if (labelName == null)
+            return name;
+        return name + "{" + labelName + "=\"" + labelValue + "\"}";
+    }
+
+    private Object register(String name, String labelName, String labelValue, String help, Object metric) {
+        String k = key(name, labelName, labelValue);
+        Entry e = entries.get(k);
+        if (e == null)
+            e = entries.computeIfAbsent(k, x -> new Entry(name, k, help, metric));
+        return e.metric;
+    }
+
+    /** Return the counter with the given name, creating it if needed */
+    public Counter counter(String name, String help) {
+        return counter(name, null, null, help);
+    }
+
+    /** Return the counter with the given name and label, creating it if needed */
+    public Counter counter(String name, String labelName, String labelValue, String help) {
+        Object m = register(name, labelName, labelValue, help, new Counter());
+        if (!(m instanceof Counter))
+            throw new IllegalArgumentException(name + " is not a counter");
+        return (Counter) m;
+    }
+
+    /** Return the histogram with the given name, creating it if needed */
+    public Histogram histogram(String name, String help) {
+        Object m = register(name, null, null, help, new Histogram());
+        if (!(m instanceof Histogram))
+            throw new IllegalArgumentException(name + " is not a histogram");
+        return (Histogram) m;
+    }
+
+    /**
+     * Register a gauge, whose value is read from supplier when the metrics
+     * are reported. Replaces any gauge of the same name, so that e.g. a new
+     * buffer pool takes over the gauges of the one it replaces.
+     */
+    public void gauge(String name, String help, LongSupplier supplier) {
+        entries.put(name, new Entry(name, name, help, supplier));
+    }
+
+    /** Return the current value of a counter or gauge, or null if there is none */
+    public Long getValue(String key) {
+        Entry e = entries.get(key);
+        if (e == null)
+            return null;
+        if (e.metric instanceof Counter)
+            return ((Counter) e.metric).get();
+        if (e.metric instanceof LongSupplier)
+            return ((LongSupplier) e.metric).getAsLong();
+        return ((Histogram) e.metric).getCount();
+    }
+
+    /** Write all metrics in the Prometheus text exposition format */
+    public void writePrometheus(Writer out) throws IOException {
+        ArrayList<Entry> sorted = new ArrayList<Entry>(entries.values());
+        sorted.sort(Comparator.comparing((Entry e) -> e.label));
+        String lastName = null;
+        for (Entry e : sorted) {
+            if (!e.name.equals(lastName)) {
+                String type = e.metric instanceof Counter ? "counter"
+                        : e.metric instanceof Histogram ? "histogram" : "gauge";
+                out.write("# HELP " + e.name + " " + e.help + "\n");
+                out.write("# TYPE " + e.name + " " + type + "\n");
+                lastName = e.name;
+            }
+            if (e.metric instanceof Histogram) {
+                Histogram h = (Histogram) e.metric;
+                long cumulative = 0;
+                for (int i = 0; i < Histogram.BUCKETS; i++) {
+                    cumulative += h.buckets[i].sum();
+                    String le = i == Histogram.BUCKETS - 1 ? "+Inf" : Long.toString(Histogram.bound(i));
+                    out.write(e.name + "_bucket{le=\"" + le + "\"} " + cumulative + "\n");
+                }
+                out.write(e.name + "_sum " + h.getSum() + "\n");
+                out.write(e.name + "_count " + h.getCount() + "\n");
+            } else {
+                out.write(e.label + " " + getValue(e.label) + "\n");
+            }
+        }
+        out.flush();
+    }
+
+    /** Return all metrics in the Prometheus text format */
+    public String toPrometheus() {
+        StringWriter w = new StringWriter();
+        try {
+            writePrometheus(w);
+        } catch (IOException e) {
+            throw new RuntimeException(e);// cannot happen with a StringWriter
+        }
+        return w.toString();
+    }
+
+    /**
+     * Write the metrics to file every interval ms, or stop doing so if
+     * interval is 0. The file is replaced atomically, so readers never see
+     * a partial dump.
+     */
+    public synchronized void setDumpFile(File file, long interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("negative dump interval");
+        dumpFile = file;
+        dumpInterval = interval;
+        if (dumper != null) {
+            dumper.interrupt();
+            dumper = null;
+        }
+        if (interval > 0) {
+            dumper = new Thread(this::runDumper, "metrics-dump");
+            dumper.setDaemon(true);
+            dumper.start();
+        }
+    }
+
+    private void runDumper() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            File file;
+            long interval;
+            synchronized (this) {
+                if (dumper != self)
+                    return;
+                file = dumpFile;
+                interval = dumpInterval;
+            }
+            try {
+                dump(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Write the metrics to file once */
+    public void dump(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"))) {
+            writePrometheus(w);
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("could not replace " + file);
+        }
+    }
+
+    /**
+     * Register the registry with the platform MBean server as
+     * {@code simpledb:type=Metrics}. Every counter and gauge is a read-only
+     * attribute, and every histogram has a _count and a _sum attribute.
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("simpledb:type=Metrics");
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(new MetricsMBean(), name);
+    }
+
+    /** The view of the registry that JMX clients see */
+    private class MetricsMBean implements DynamicMBean {
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Entry e = entries.get(attribute);
+            if (e != null && !(e.metric instanceof Histogram))
+                return getValue(attribute);
+            for (String suffix : new String[] { "_count", "_sum" }) {
+                if (attribute.endsWith(suffix)) {
+                    e = entries.get(attribute.substring(0, attribute.length() - suffix.length()));
+                    if (e != null && e.metric instanceof Histogram) {
+                        Histogram h = (Histogram) e.metric;
+                        return suffix.equals("_count") ? h.getCount() : h.getSum();
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException e) {
+                    // skip it, as the DynamicMBean contract allows
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+            for (Entry e : entries.values()) {
+                if (e.metric instanceof Histogram) {
+                    attrs.add(new MBeanAttributeInfo(e.label + "_count", "long", e.help, true, false, false));
+                    attrs.add(new MBeanAttributeInfo(e.label + "_sum", "long", e.help, true, false, false));
+                } else {
+                    attrs.add(new MBeanAttributeInfo(e.label, "long", e.help, true, false, false));
+                }
+            }
+            return new MBeanInfo(Metrics.class.getName(), "SimpleDB buffer pool and lock metrics",
+                    attrs.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
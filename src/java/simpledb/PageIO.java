@@ -0,0 +1,203 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Page I/O on the file of a DbFile, shared by HeapFile and BTreeFile.
+ * <p>
+ * One FileChannel is kept open per file and used by every thread at once:
+ * reads and writes pass their offset rather than seeking, so they need no
+ * locking, and a page is read with one call instead of a byte at a time.
+ * The channel is opened on first use and closed by {@link #close} when the
+ * file leaves the catalog; a later read or write opens it again, as does
+ * one that finds the channel closed under it by another thread.
+ * <p>
+ * Pages are read into per-thread buffers, see {@link #buffer}, so reading
+ * a page allocates nothing but the page itself.
+ * <p>
+ * In mapped mode ({@link #setMapped}), meant for read-mostly tables, reads
+ * copy out of read-only mappings of the file instead of calling into the
+ * kernel: the file is mapped in chunks of {@link #CHUNK_SIZE} bytes, and a
+ * chunk is mapped again once the file has grown past its end. Writes still
+ * go through the channel; the kernel keeps the mappings in step with them.
+ * Files must not shrink while mapped.
+ */
+public class PageIO {
+    private final File file;
+    private volatile FileChannel channel = null;
+
+    /** Size of the regions the file is mapped in, in mapped mode. */
+    public static final int CHUNK_SIZE = 1 << 26;
+    /** The mapped chunks, null when not in mapped mode; replaced, never changed */
+    private volatile MappedByteBuffer[] chunks = null;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+    /** A read or write on the channel, retried if the channel was closed */
+    private interface ChannelOp {
+        int apply(FileChannel ch) throws IOException;
+    }
+
+    public PageIO(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Return this thread's buffer for reading a page of the given size. It
+     * may be longer than size, and is overwritten by the next read on this
+     * thread, so pages must copy or parse it rather than keep it.
+     */
+    public static byte[] buffer(int size) {
+        byte[] b = buffers.get();
+        if (b == null || b.length < size) {
+            b = new byte[size];
+            buffers.set(b);
+        }
+        return b;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen())
+            return ch;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen())
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            return channel;
+        }
+    }
+
+    private int run(ChannelOp op) throws IOException {
+        while (true) {
+            try {
+                return op.apply(channel());
+            } catch (ClosedByInterruptException e) {
+                // this thread was interrupted: give up, the others reopen
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread, or through an interrupt of one
+            }
+        }
+    }
+
+    /**
+     * Read len bytes at offset into buf, starting at buf[0].
+     *
+     * @throws IllegalArgumentException if the file ends before offset + len
+     */
+    public void read(byte[] buf, int len, long offset) throws IOException {
+        if (chunks != null) {
+            readMapped(buf, len, offset);
+            return;
+        }
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, len);
+        while (dst.hasRemaining()) {
+            if (run(ch -> ch.read(dst, offset + dst.position())) < 0)
+                throw new IllegalArgumentException("read past the end of " + file);
+        }
+    }
+
+    /** Copy len bytes at offset out of the mapped chunks; a read may span two */
+    private void readMapped(byte[] buf, int len, long offset) throws IOException {
+        int done = 0;
+        while (done < len) {
+            long pos = offset + done;
+            int i = (int) (pos / CHUNK_SIZE);
+            int off = (int) (pos % CHUNK_SIZE);
+            int n = Math.min(len - done, CHUNK_SIZE - off);
+            ByteBuffer chunk = chunk(i, off + n).duplicate();
+            chunk.position(off);
+            chunk.get(buf, done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Return chunk i, mapping it, or mapping it again if the file has grown,
+     * so that it covers at least its first len bytes.
+     *
+     * @throws IllegalArgumentException if the file is too short for that
+     */
+    private MappedByteBuffer chunk(int i, int len) throws IOException {
+        MappedByteBuffer[] cs = chunks;
+        if (cs != null && i < cs.length && cs[i] != null && cs[i].capacity() >= len)
+            return cs[i];
+        synchronized (this) {
+            cs = chunks;
+            if (cs == null) // the mode was switched off meanwhile
+                cs = new MappedByteBuffer[0];
+            if (i < cs.length && cs[i] != null && cs[i].capacity() >= len)
+                return cs[i];
+            long start = (long) i * CHUNK_SIZE;
+            long size = file.length();
+            if (size < start + len)
+                throw new IllegalArgumentException("read past the end of " + file);
+            long mapLen = Math.min(CHUNK_SIZE, size - start);
+            MappedByteBuffer[] map = new MappedByteBuffer[1];
+            run(ch -> {
+                map[0] = ch.map(FileChannel.MapMode.READ_ONLY, start, mapLen);
+                return 0;
+            });
+            MappedByteBuffer[] next = Arrays.copyOf(cs, Math.max(cs.length, i + 1));
+            next[i] = map[0];
+            if (chunks != null)
+                chunks = next;
+            return map[0];
+        }
+    }
+
+    /**
+     * Switch mapped mode on or off. Switching it off drops the mappings;
+     * the memory is released once they are garbage collected.
+     */
+    public synchronized void setMapped(boolean mapped) {
+        if (mapped != (chunks != null))
+            chunks = mapped ? new MappedByteBuffer[0] : null;
+    }
+
+    /** Return true if reads copy out of mappings of the file */
+    public boolean isMapped() {
+        return chunks != null;
+    }
+
+    /** Write all of src at offset. */
+    public void write(ByteBuffer src, long offset) throws IOException {
+        long start = offset - src.position();
+        while (src.hasRemaining())
+            run(ch -> ch.write(src, start + src.position()));
+    }
+
+    /** Write data at offset. */
+    public void write(byte[] data, long offset) throws IOException {
+        write(ByteBuffer.wrap(data), offset);
+    }
+
+    /** Make the writes so far durable. */
+    public void force() throws IOException {
+        run(ch -> {
+            ch.force(false);
+            return 0;
+        });
+    }
+
+    /**
+     * Close the channel, if it is open, and drop the mappings of mapped
+     * mode, which stays on and maps the file again when next read.
+     */
+    public synchronized void close() throws IOException {
+        if (chunks != null)
+            chunks = new MappedByteBuffer[0];
+        if (channel != null)
+            channel.close();
+        channel = null;
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * An intrusive doubly linked list of page ids, used by the list-based
+ * eviction policies. The caller keeps the nodes (typically in a map keyed
+ * by page id), so moving a page within or between lists is O(1) and
+ * allocates nothing.
+ */
+class PageList {
+
+    /** A list element; at most one list links a node at a time. */
+    static class Node {
+        final PageId pid;
+        Node prev, next;
+        PageList list;
+
+        Node(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private Node head, tail;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    Node head() {
+        return head;
+    }
+
+    Node tail() {
+        return tail;
+    }
+
+    /** Link n at the head of this list; n must not be on any list. */
+    void addFirst(Node n) {
+        n.list = this;
+        n.prev = null;
+        n.next = head;
+        if (head != null)
+            head.prev = n;
+        else
+            tail = n;
+        head = n;
+        size++;
+    }
+
+    /** Unlink n, which must be on this list. */
+    void remove(Node n) {
+        if (n.prev != null)
+            n.prev.next = n.next;
+        else
+            head = n.next;
+        if (n.next != null)
+            n.next.prev = n.prev;
+        else
+            tail = n.prev;
+        n.prev = n.next = null;
+        n.list = null;
+        size--;
+    }
+
+    void moveToFront(Node n) {
+        if (head == n)
+            return;
+        remove(n);
+        addFirst(n);
+    }
+}
@@ -597,8 +597,21 @@ public class Parser {
 
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
+    /** File next to the catalog that the resident page ids are saved to */
+    static final String WARM_START_FILE = "bufferpool.warm";
+    /** How often the resident page ids are saved, in ms */
+    static final long WARM_START_INTERVAL = 60 * 1000;
+
+    protected File warmStartFile = null;
 
     protected void shutdown() {
+        if (warmStartFile != null) {
+            try {
+                Database.getBufferPool().saveResidentPages(warmStartFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
         System.out.println("Bye");
     }
 
@@ -607,6 +620,18 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
+        // read back the pages that were cached when we last shut down; the
+        // statistics scans below use scan rings for large tables, so they
+        // leave these pages alone
+        warmStartFile = new File(new File(argv[0]).getAbsoluteFile().getParentFile(), WARM_START_FILE);
+        if (warmStartFile.exists()) {
+            try {
+                Database.getBufferPool().warmStart(warmStartFile);
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable " + warmStartFile);
+            }
+        }
+        Database.getBufferPool().setWarmStartFile(warmStartFile, WARM_START_INTERVAL);
         TableStats.computeStatistics();
 
         String queryFile = null;
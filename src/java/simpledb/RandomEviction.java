@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+
+/**
+ * Evicts an arbitrary evictable page. Resident pages are kept in an array
+ * with a swap-with-last removal so that every operation is O(1) apart
+ * from skipping pages that cannot be evicted.
+ */
+public class RandomEviction implements EvictionPolicy {
+
+    private final ArrayList<PageId> pages = new ArrayList<>();
+    private final HashMap<PageId, Integer> index = new HashMap<>();
+    private final Random rand = new Random();
+
+    public synchronized void pageAdded(PageId pid) {
+        if (index.containsKey(pid))
+            return;
+        index.put(pid, pages.size());
+        pages.add(pid);
+    }
+
+    public void pageAccessed(PageId pid) {
+        // access history plays no part in a random choice
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer i = index.remove(pid);
+        if (i == null)
+            return;
+        PageId last = pages.remove(pages.size() - 1);
+        if (i < pages.size()) {
+            pages.set(i, last);
+            index.put(last, i);
+        }
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        int n = pages.size();
+        if (n == 0)
+            return null;
+        int start = rand.nextInt(n);
+        for (int k = 0; k < n; k++) {
+            PageId pid = pages.get((start + k) % n);
+            if (evictable.test(pid)) {
+                pageRemoved(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    /** No recency is kept, so the order is arbitrary. */
+    public synchronized List<PageId> pagesByRecency() {
+        return new ArrayList<>(pages);
+    }
+}
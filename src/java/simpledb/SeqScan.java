@@ -80,6 +80,17 @@ public class SeqScan implements OpIterator {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Decode only the fields i of the table with fields[i] set; the others
+     * are null in the returned tuples. Must be called before open.
+     *
+     * @param fields
+     *            the fields the plan above this scan reads, or null for all
+     */
+    public void setProjection(boolean[] fields) {
+        it=f.iterator(tid,fields);
+    }
+
     public void open() throws DbException, TransactionAbortedException, InterruptedException {
         // some code goes here
         it.open();
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 2Q eviction (Johnson and Shasha, full version). New pages enter the FIFO
+ * queue A1in; pages evicted from A1in are remembered, without their data,
+ * in the ghost queue A1out. A page that is read again while it is in A1out
+ * has proven to be reused and goes to Am, an LRU list. Victims are taken
+ * from A1in while it is over its share of the pool, and from Am otherwise,
+ * so a large scan only ever churns A1in.
+ */
+public class TwoQEviction implements EvictionPolicy {
+
+    private final HashMap<PageId, PageList.Node> nodes = new HashMap<>();
+    private final PageList a1in = new PageList();
+    private final PageList am = new PageList();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<>();
+    private final int kin, kout;
+
+    /**
+     * Size A1in at a quarter of the pool and A1out at half, as suggested
+     * in the paper.
+     *
+     * @param capacity number of pages in the buffer pool
+     */
+    public TwoQEviction(int capacity) {
+        this(Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param kin number of pages A1in may hold before it is preferred for eviction
+     * @param kout number of evicted page ids remembered in A1out
+     */
+    public TwoQEviction(int kin, int kout) {
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        PageList.Node n = nodes.get(pid);
+        if (n != null) {
+            if (n.list == am)
+                am.moveToFront(n);
+            return;
+        }
+        n = new PageList.Node(pid);
+        nodes.put(pid, n);
+        if (a1out.remove(pid))
+            am.addFirst(n);
+        else
+            a1in.addFirst(n);
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        // hits in A1in are ignored: they are most likely correlated references
+        PageList.Node n = nodes.get(pid);
+        if (n != null && n.list == am)
+            am.moveToFront(n);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        PageList.Node n = nodes.remove(pid);
+        if (n != null)
+            n.list.remove(n);
+    }
+
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        PageList first = a1in.size() > kin ? a1in : am;
+        PageList second = first == a1in ? am : a1in;
+        PageList.Node n = oldestEvictable(first, evictable);
+        if (n == null)
+            n = oldestEvictable(second, evictable);
+        if (n == null)
+            return null;
+        if (n.list == a1in) {
+            a1out.add(n.pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        n.list.remove(n);
+        nodes.remove(n.pid);
+        return n.pid;
+    }
+
+    /** Pages of Am, which have proven to be reused, come before those of A1in. */
+    public synchronized List<PageId> pagesByRecency() {
+        ArrayList<PageId> pages = new ArrayList<>(nodes.size());
+        for (PageList.Node n = am.head(); n != null; n = n.next)
+            pages.add(n.pid);
+        for (PageList.Node n = a1in.head(); n != null; n = n.next)
+            pages.add(n.pid);
+        return pages;
+    }
+
+    private PageList.Node oldestEvictable(PageList list, Predicate<PageId> evictable) {
+        PageList.Node n = list.tail();
+        while (n != null && !evictable.test(n.pid))
+            n = n.prev;
+        return n;
+    }
+}
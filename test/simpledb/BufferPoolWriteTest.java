@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -50,6 +51,28 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class that records how pages are handed to it for writing
+    class HeapFileWriteCounter extends HeapFile {
+        int writePageCalls = 0;
+        ArrayList<Integer> batches = new ArrayList<Integer>();
+
+        public HeapFileWriteCounter(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page p) throws IOException {
+            writePageCalls++;
+            super.writePage(p);
+        }
+
+        @Override
+        public void writePages(List<Page> pages) throws IOException {
+            batches.add(pages.size());
+            super.writePages(pages);
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -135,6 +158,37 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * The pages a transaction dirtied in one file are written back together
+     */
+    @Test public void flushPagesCoalesces() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        HeapFileWriteCounter counter = new HeapFileWriteCounter(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(counter, SystemTestUtil.getUUID());
+
+        // delete the first tuple of every page
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        DbFileIterator it = counter.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getRecordId().getTupleNumber() == 0)
+                victims.add(t);
+        }
+        it.close();
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().flushPages(tid);
+
+        assertEquals(0, counter.writePageCalls);
+        assertEquals(1, counter.batches.size());
+        assertEquals(10, (int) counter.batches.get(0));
+        for (int i = 0; i < 10; i++) {
+            HeapPage p = (HeapPage) counter.readPage(new HeapPageId(counter.getId(), i));
+            assertEquals(1, p.getNumEmptySlots());
+        }
+    }
+
     /**
      * JUnit suite target
      */
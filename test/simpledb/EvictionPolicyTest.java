@@ -0,0 +1,109 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest {
+  private PageId[] p;
+
+  @Before public void setUp() {
+    p = new PageId[8];
+    for (int i = 0; i < p.length; i++)
+      p[i] = new HeapPageId(1, i);
+  }
+
+  private void add(EvictionPolicy e, int... pages) {
+    for (int i : pages)
+      e.pageAdded(p[i]);
+  }
+
+  private void access(EvictionPolicy e, int... pages) {
+    for (int i : pages)
+      e.pageAccessed(p[i]);
+  }
+
+  @Test public void lru() {
+    EvictionPolicy e = new LruEviction(false);
+    add(e, 0, 1, 2);
+    access(e, 0);
+    assertEquals(p[1], e.evict(pid -> true));
+    assertEquals(p[2], e.evict(pid -> !pid.equals(p[0])));
+    assertNull(e.evict(pid -> false));
+    assertEquals(p[0], e.evict(pid -> true));
+    assertNull(e.evict(pid -> true));
+  }
+
+  @Test public void mru() {
+    EvictionPolicy e = new LruEviction(true);
+    add(e, 0, 1, 2);
+    access(e, 0);
+    assertEquals(p[0], e.evict(pid -> true));
+    assertEquals(p[2], e.evict(pid -> true));
+  }
+
+  /**
+   * A page whose reference bit is set survives one sweep of the hand.
+   */
+  @Test public void clockSecondChance() {
+    EvictionPolicy e = new ClockEviction(4);
+    add(e, 0, 1, 2, 3);
+    // first sweep clears every bit, then the hand comes back to 0
+    assertEquals(p[0], e.evict(pid -> true));
+    access(e, 1);
+    assertEquals(p[2], e.evict(pid -> true));
+    e.pageRemoved(p[3]);
+    add(e, 4, 5, 6);
+    assertEquals(p[1], e.evict(pid -> pid.equals(p[1])));
+  }
+
+  /**
+   * Pages referenced fewer than K times go before pages referenced K
+   * times, however recently they were touched.
+   */
+  @Test public void lruK() {
+    EvictionPolicy e = new LruKEviction(2, 2);
+    add(e, 0, 1, 2);
+    access(e, 0, 1);
+    access(e, 2);
+    add(e, 3);
+    assertEquals(p[3], e.evict(pid -> true));
+    assertEquals(p[0], e.evict(pid -> true));
+    assertEquals(p[2], e.evict(pid -> !pid.equals(p[1])));
+    assertEquals(p[1], e.evict(pid -> true));
+    assertNull(e.evict(pid -> true));
+  }
+
+  /**
+   * Only a page that comes back after being evicted from A1in makes it
+   * into the LRU part; a scan keeps cycling through A1in.
+   */
+  @Test public void twoQ() {
+    EvictionPolicy e = new TwoQEviction(1, 4);
+    add(e, 0, 1);
+    assertEquals(p[0], e.evict(pid -> true));
+    add(e, 0);
+    add(e, 2, 3);
+    assertEquals(p[1], e.evict(pid -> true));
+    assertEquals(p[2], e.evict(pid -> true));
+    assertEquals(p[0], e.evict(pid -> true));
+    assertEquals(p[3], e.evict(pid -> true));
+  }
+
+  @Test public void randomEvictsOnlyEvictable() {
+    EvictionPolicy e = new RandomEviction();
+    add(e, 0, 1, 2, 3);
+    e.pageRemoved(p[1]);
+    assertEquals(p[2], e.evict(pid -> pid.equals(p[2])));
+    assertNull(e.evict(pid -> pid.equals(p[1])));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(EvictionPolicyTest.class);
+  }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class FrameArenaTest {
+
+  @Test public void framesAreDisjointAndOffHeap() {
+    FrameArena arena = new FrameArena(16, 4);
+    Object owner = new Object();
+    ByteBuffer a = arena.allocate(owner);
+    ByteBuffer b = arena.allocate(owner);
+    assertTrue(a.isDirect());
+    assertEquals(16, a.capacity());
+    a.put(0, (byte) 1);
+    b.put(0, (byte) 2);
+    assertEquals(1, a.get(0));
+    assertEquals(4, arena.getTotalFrames());
+    assertEquals(2, arena.getFramesInUse());
+  }
+
+  /**
+   * Frames go back to the arena once their owner is unreachable, so
+   * allocating far more frames than are live at once does not grow it.
+   */
+  @Test public void framesReusedAfterOwnerDies() throws Exception {
+    FrameArena arena = new FrameArena(16, 4);
+    for (int i = 0; i < 100; i++) {
+      arena.allocate(new Object());
+      if (arena.getTotalFrames() > 4) {
+        System.gc();
+        Thread.sleep(10);
+      }
+    }
+    assertTrue(arena.getTotalFrames() < 100);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FrameArenaTest.class);
+  }
+}
@@ -0,0 +1,47 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+public class FreeSpaceMapTest {
+
+  /**
+   * Full pages are passed over, freed ones found again, and the map comes
+   * back as saved, with pages added to the file since taken to have room.
+   */
+  @Test public void findsRoomAndPersists() throws Exception {
+    File f = File.createTempFile("fsm", ".dat");
+    f.deleteOnExit();
+    File side = new File(f.getPath() + FreeSpaceMap.SUFFIX);
+    side.deleteOnExit();
+
+    FreeSpaceMap m = new FreeSpaceMap(f, 40000);
+    for (int p = 0; p < 39999; p++)
+      m.setRoom(p, false);
+    assertEquals(39999, m.next(0));
+    m.setRoom(39999, false);
+    assertEquals(-1, m.next(0));
+    m.setRoom(5, true);
+    assertEquals(5, m.next(0));
+    assertEquals(-1, m.next(6));
+    m.close();
+
+    m = new FreeSpaceMap(f, 40002);
+    assertEquals(5, m.next(0));
+    assertEquals(40000, m.next(6));
+    m.setRoom(5, false);
+    assertEquals(40000, m.next(0));
+    m.close();
+    side.delete();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+  }
+}
@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -99,6 +100,24 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator() with a projection: only the
+     * projected field is decoded.
+     */
+    @Test public void testProjectedIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator(null, 0, new boolean[] { false, true });
+
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertNull(tup.getField(0));
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -1,6 +1,8 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -126,6 +128,24 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getBeforeImage(): the same page is returned
+     * until the before image is set again.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        int free = page.getNumEmptySlots();
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(1, 2));
+        assertSame(before, page.getBeforeImage());
+        assertEquals(free, before.getNumEmptySlots());
+
+        page.setBeforeImage();
+        assertNotSame(before, page.getBeforeImage());
+        assertEquals(free - 1, page.getBeforeImage().getNumEmptySlots());
+        assertEquals(free, before.getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,285 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+  private LockManager lm;
+  private PageId p0, p1;
+  private TransactionId tid1, tid2;
+
+  /** Time to wait before checking the state of lock contention, in ms */
+  private static final int TIMEOUT = 200;
+
+  /**
+   * Thread that acquires a single lock and records whether it got it.
+   */
+  private class Acquirer extends Thread {
+    final TransactionId tid;
+    final PageId pid;
+    final Permissions perm;
+    volatile boolean acquired = false;
+    volatile Exception error = null;
+
+    Acquirer(TransactionId tid, PageId pid, Permissions perm) {
+      this.tid = tid;
+      this.pid = pid;
+      this.perm = perm;
+    }
+
+    public void run() {
+      try {
+        lm.acquireLock(tid, pid, perm);
+        acquired = true;
+      } catch (Exception e) {
+        error = e;
+      }
+    }
+  }
+
+  @Before public void setUp() {
+    lm = new LockManager();
+    p0 = new HeapPageId(1, 0);
+    p1 = new HeapPageId(1, 1);
+    tid1 = new TransactionId();
+    tid2 = new TransactionId();
+  }
+
+  /**
+   * A waiter blocked on an exclusive lock is woken as soon as the holder
+   * releases it, rather than after some polling interval.
+   */
+  @Test public void waiterWokenOnRelease() throws Exception {
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+    Acquirer a = new Acquirer(tid2, p0, Permissions.READ_ONLY);
+    a.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(a.acquired);
+
+    lm.releaseAllLocks(tid1);
+    a.join(TIMEOUT);
+    assertTrue(a.acquired);
+    assertTrue(lm.holdsLock(tid2, p0));
+    assertFalse(lm.holdsLock(tid1, p0));
+  }
+
+  /**
+   * A shared holder that is the only holder can upgrade immediately,
+   * and a later exclusive request queues behind it.
+   */
+  @Test public void upgradeBeatsQueuedWriter() throws Exception {
+    lm.acquireLock(tid1, p0, Permissions.READ_ONLY);
+    Acquirer writer = new Acquirer(tid2, p0, Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired);
+
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+    assertFalse(writer.acquired);
+
+    lm.releaseLock(tid1, p0);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+  }
+
+  /**
+   * Readers queued behind a writer are all granted together once the
+   * writer is done.
+   */
+  @Test public void readersGrantedTogether() throws Exception {
+    lm.acquireLock(tid1, p1, Permissions.READ_WRITE);
+    Acquirer r1 = new Acquirer(tid2, p1, Permissions.READ_ONLY);
+    Acquirer r2 = new Acquirer(new TransactionId(), p1, Permissions.READ_ONLY);
+    r1.start();
+    r2.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(r1.acquired || r2.acquired);
+
+    lm.releaseAllLocks(tid1);
+    r1.join(TIMEOUT);
+    r2.join(TIMEOUT);
+    assertTrue(r1.acquired && r2.acquired);
+  }
+
+  /**
+   * Two transactions waiting on each other form a cycle in the waits-for
+   * graph; the younger one is aborted and the older one gets its lock.
+   */
+  @Test public void youngestDeadlockVictim() throws Exception {
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+    lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+
+    Acquirer older = new Acquirer(tid1, p1, Permissions.READ_ONLY);
+    older.start();
+    Thread.sleep(TIMEOUT);
+    Acquirer younger = new Acquirer(tid2, p0, Permissions.READ_ONLY);
+    younger.start();
+    younger.join(TIMEOUT);
+    assertTrue(younger.error instanceof TransactionAbortedException);
+    assertFalse(older.acquired);
+
+    lm.releaseAllLocks(tid2);
+    older.join(TIMEOUT);
+    assertTrue(older.acquired);
+  }
+
+  /**
+   * With a background detector, the victim may be a transaction that
+   * blocked earlier; it is woken up and aborted.
+   */
+  @Test public void backgroundDetection() throws Exception {
+    lm.setDetectionInterval(50);
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+    lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+
+    Acquirer younger = new Acquirer(tid2, p0, Permissions.READ_WRITE);
+    younger.start();
+    Thread.sleep(TIMEOUT);
+    assertNull(younger.error);
+    Acquirer older = new Acquirer(tid1, p1, Permissions.READ_WRITE);
+    older.start();
+    younger.join(TIMEOUT);
+    assertTrue(younger.error instanceof TransactionAbortedException);
+
+    lm.releaseAllLocks(tid2);
+    older.join(TIMEOUT);
+    assertTrue(older.acquired);
+    lm.setDetectionInterval(0);
+  }
+
+  /**
+   * Under wait-die a younger transaction aborts instead of waiting for an
+   * older one, while an older one waits for a younger one.
+   */
+  @Test public void waitDie() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+    lm.acquireLock(tid2, p1, Permissions.READ_WRITE);
+
+    Acquirer older = new Acquirer(tid1, p1, Permissions.READ_ONLY);
+    older.start();
+    Acquirer younger = new Acquirer(tid2, p0, Permissions.READ_ONLY);
+    younger.start();
+    younger.join(TIMEOUT);
+    assertTrue(younger.error instanceof TransactionAbortedException);
+    assertFalse(older.acquired);
+
+    lm.releaseAllLocks(tid2);
+    older.join(TIMEOUT);
+    assertTrue(older.acquired);
+  }
+
+  /**
+   * Under wound-wait an older transaction wounds a younger one in its way,
+   * which aborts at its next lock request, while a younger one waits.
+   */
+  @Test public void woundWait() throws Exception {
+    lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+    lm.acquireLock(tid2, p0, Permissions.READ_WRITE);
+
+    Acquirer older = new Acquirer(tid1, p0, Permissions.READ_WRITE);
+    older.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(older.acquired);
+    assertNull(older.error);
+    try {
+      lm.acquireLock(tid2, p1, Permissions.READ_ONLY);
+      fail("expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // wounded
+    }
+
+    lm.releaseAllLocks(tid2);
+    older.join(TIMEOUT);
+    assertTrue(older.acquired);
+    Acquirer younger = new Acquirer(tid2, p0, Permissions.READ_ONLY);
+    younger.start();
+    younger.join(TIMEOUT);
+    assertFalse(younger.acquired);
+    assertNull(younger.error);
+    lm.releaseAllLocks(tid1);
+    younger.join(TIMEOUT);
+    assertTrue(younger.acquired);
+  }
+
+  /**
+   * Pages that hash to the same stripe are still locked independently,
+   * and a waiter on one of them is woken by a release of that page.
+   */
+  @Test public void pagesSharingStripe() throws Exception {
+    lm = new LockManager(1);
+    lm.acquireLock(tid1, p0, Permissions.READ_WRITE);
+    Acquirer a = new Acquirer(tid2, p1, Permissions.READ_WRITE);
+    a.start();
+    a.join(TIMEOUT);
+    assertTrue(a.acquired);
+
+    Acquirer b = new Acquirer(tid2, p0, Permissions.READ_ONLY);
+    b.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(b.acquired);
+    lm.releaseLock(tid1, p0);
+    b.join(TIMEOUT);
+    assertTrue(b.acquired);
+    assertTrue(lm.holdsLock(tid2, p1));
+  }
+
+  /**
+   * A reader past the escalation threshold trades its page locks for an S
+   * lock on the table, which still lets other readers in but blocks
+   * writers of any page of the table.
+   */
+  @Test public void escalationToTableLock() throws Exception {
+    lm.setEscalationThreshold(3);
+    for (int i = 0; i < 4; i++)
+      lm.acquireLock(tid1, new HeapPageId(1, i), Permissions.READ_ONLY);
+    assertTrue(lm.getLockedPages(tid1).isEmpty());
+    assertEquals(LockManager.LockMode.S, lm.getTableLock(tid1, 1));
+    assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 10)));
+
+    Acquirer reader = new Acquirer(tid2, new HeapPageId(1, 5), Permissions.READ_ONLY);
+    reader.start();
+    reader.join(TIMEOUT);
+    assertTrue(reader.acquired);
+
+    TransactionId tid3 = new TransactionId();
+    Acquirer writer = new Acquirer(tid3, new HeapPageId(1, 20), Permissions.READ_WRITE);
+    writer.start();
+    Thread.sleep(TIMEOUT);
+    assertFalse(writer.acquired);
+    // other tables are not affected
+    lm.acquireLock(tid3, new HeapPageId(2, 0), Permissions.READ_WRITE);
+
+    lm.releaseAllLocks(tid1);
+    lm.releaseAllLocks(tid2);
+    writer.join(TIMEOUT);
+    assertTrue(writer.acquired);
+    assertEquals(LockManager.LockMode.IX, lm.getTableLock(tid3, 1));
+  }
+
+  /**
+   * Escalation does not wait: while another transaction writes to the
+   * table, the reader keeps its page locks.
+   */
+  @Test public void escalationNeverWaits() throws Exception {
+    lm.setEscalationThreshold(2);
+    lm.acquireLock(tid2, new HeapPageId(1, 9), Permissions.READ_WRITE);
+    for (int i = 0; i < 4; i++)
+      lm.acquireLock(tid1, new HeapPageId(1, i), Permissions.READ_ONLY);
+    assertEquals(4, lm.getLockedPages(tid1).size());
+    assertEquals(LockManager.LockMode.IS, lm.getTableLock(tid1, 1));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockManagerTest.class);
+  }
+}
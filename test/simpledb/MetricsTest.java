@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+public class MetricsTest extends SimpleDbTestBase {
+
+  @Test public void prometheusFormat() {
+    Metrics m = new Metrics();
+    Metrics.Counter c = m.counter("reads_total", "table", "1", "reads");
+    assertSame(c, m.counter("reads_total", "table", "1", "reads"));
+    c.add(3);
+    m.counter("reads_total", "table", "2", "reads").inc();
+    Metrics.Histogram h = m.histogram("wait_micros", "waits");
+    h.record(1);
+    h.record(3);
+    h.record(100);
+    m.gauge("pages", "pages", () -> 7);
+
+    String text = m.toPrometheus();
+    assertTrue(text.contains("# TYPE reads_total counter\n"));
+    assertTrue(text.contains("reads_total{table=\"1\"} 3\n"));
+    assertTrue(text.contains("reads_total{table=\"2\"} 1\n"));
+    assertTrue(text.contains("pages 7\n"));
+    assertTrue(text.contains("wait_micros_bucket{le=\"1\"} 1\n"));
+    assertTrue(text.contains("wait_micros_bucket{le=\"4\"} 2\n"));
+    assertTrue(text.contains("wait_micros_bucket{le=\"+Inf\"} 3\n"));
+    assertTrue(text.contains("wait_micros_sum 104\n"));
+    // the HELP and TYPE lines come once per name, not once per label
+    assertEquals(text.indexOf("# TYPE reads_total"), text.lastIndexOf("# TYPE reads_total"));
+  }
+
+  @Test public void dumpToFile() throws Exception {
+    Metrics m = new Metrics();
+    m.counter("x_total", "x").inc();
+    File f = File.createTempFile("metrics", ".prom");
+    f.deleteOnExit();
+    m.dump(f);
+    String text = new String(Files.readAllBytes(f.toPath()), "UTF-8");
+    assertTrue(text.contains("x_total 1\n"));
+  }
+
+  /** Page requests and lock waits show up in the global registry and over JMX */
+  @Test public void bufferPoolMetrics() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    Metrics m = Database.getMetrics();
+    long hits = m.getValue("simpledb_bufferpool_hits_total");
+    long misses = m.getValue("simpledb_bufferpool_misses_total");
+
+    TransactionId tid = new TransactionId();
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    bp.getPage(tid, pid, Permissions.READ_ONLY);
+    bp.getPage(tid, pid, Permissions.READ_ONLY);
+    bp.transactionComplete(tid);
+
+    assertEquals(hits + 1, (long) m.getValue("simpledb_bufferpool_hits_total"));
+    assertEquals(misses + 1, (long) m.getValue("simpledb_bufferpool_misses_total"));
+    assertEquals(1L, (long) m.getValue("simpledb_file_pages_read_total{table=\"" + f.getId() + "\"}"));
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    Object pages = server.getAttribute(new ObjectName("simpledb:type=Metrics"), "simpledb_bufferpool_pages");
+    assertEquals(1L, pages);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MetricsTest.class);
+  }
+}
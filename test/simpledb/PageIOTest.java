@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageIOTest {
+
+  private static byte[] filled(int len, int value) {
+    byte[] b = new byte[len];
+    Arrays.fill(b, (byte) value);
+    return b;
+  }
+
+  @Test public void positionalReadsAndWrites() throws Exception {
+    File f = File.createTempFile("pageio", ".dat");
+    f.deleteOnExit();
+    PageIO io = new PageIO(f);
+    io.write(filled(8, 1), 0);
+    io.write(filled(8, 2), 8);
+    assertEquals(16, f.length());
+
+    byte[] buf = PageIO.buffer(8);
+    io.read(buf, 8, 8);
+    assertArrayEquals(filled(8, 2), Arrays.copyOf(buf, 8));
+
+    try {
+      io.read(buf, 8, 12);
+      fail("expected IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /** A closed PageIO opens its channel again when it is next used. */
+  @Test public void reopensAfterClose() throws Exception {
+    File f = File.createTempFile("pageio", ".dat");
+    f.deleteOnExit();
+    PageIO io = new PageIO(f);
+    io.write(filled(8, 3), 0);
+    io.close();
+    byte[] buf = PageIO.buffer(8);
+    io.read(buf, 8, 0);
+    assertArrayEquals(filled(8, 3), Arrays.copyOf(buf, 8));
+    io.close();
+  }
+
+  /**
+   * Mapped reads see data written after the file was mapped, including
+   * past the end it had then, and reads that span two chunks.
+   */
+  @Test public void mappedReadsFollowWrites() throws Exception {
+    File f = File.createTempFile("pageio", ".dat");
+    f.deleteOnExit();
+    PageIO io = new PageIO(f);
+    io.setMapped(true);
+    io.write(filled(8, 4), 0);
+    byte[] buf = PageIO.buffer(8);
+    io.read(buf, 8, 0);
+    assertArrayEquals(filled(8, 4), Arrays.copyOf(buf, 8));
+
+    io.write(filled(8, 5), 0);
+    io.write(filled(8, 6), PageIO.CHUNK_SIZE - 4);
+    io.read(buf, 8, 0);
+    assertArrayEquals(filled(8, 5), Arrays.copyOf(buf, 8));
+    io.read(buf, 8, PageIO.CHUNK_SIZE - 4);
+    assertArrayEquals(filled(8, 6), Arrays.copyOf(buf, 8));
+    io.close();
+    f.delete();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageIOTest.class);
+  }
+}
@@ -0,0 +1,82 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Compares the deadlock policies of the lock manager on a lock-bound
+ * workload: several threads run short transactions that each lock a few
+ * random pages of a small table exclusively, in random order, so that
+ * deadlocks are common. An aborted transaction is retried with the same
+ * TransactionId. For each policy the throughput in committed transactions
+ * per second and the number of aborts per commit are printed.
+ * <p>
+ * Not a unit test; run it with
+ * {@code java -cp bin/src:bin/test:lib/* simpledb.systemtest.DeadlockPolicyBenchmark
+ * [threads] [pages per transaction] [seconds per policy]}.
+ */
+public class DeadlockPolicyBenchmark {
+    private static final int TABLE_PAGES = 16;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int pagesPerTxn = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long millis = (args.length > 2 ? Long.parseLong(args[2]) : 5) * 1000;
+
+        Database.reset();
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, null);
+        System.out.printf("%d threads, %d of %d pages per transaction, %d s per policy%n",
+                threads, pagesPerTxn, TABLE_PAGES, millis / 1000);
+        System.out.printf("%-12s %12s %12s %16s%n", "policy", "commits/s", "aborts/s", "aborts/commit");
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            bp.setDeadlockPolicy(policy);
+            AtomicLong commits = new AtomicLong();
+            AtomicLong aborts = new AtomicLong();
+            long deadline = System.currentTimeMillis() + millis;
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                long seed = i;
+                workers[i] = new Thread(() -> run(bp, f, pagesPerTxn, deadline, new Random(seed), commits, aborts));
+                workers[i].start();
+            }
+            for (Thread w : workers)
+                w.join();
+            double secs = millis / 1000.0;
+            System.out.printf("%-12s %12.0f %12.0f %16.3f%n", policy, commits.get() / secs,
+                    aborts.get() / secs, commits.get() == 0 ? 0.0 : (double) aborts.get() / commits.get());
+        }
+    }
+
+    private static void run(BufferPool bp, HeapFile f, int pagesPerTxn, long deadline, Random rnd,
+            AtomicLong commits, AtomicLong aborts) {
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                TransactionId tid = new TransactionId();
+                int[] pages = new int[pagesPerTxn];
+                for (int i = 0; i < pagesPerTxn; i++)
+                    pages[i] = rnd.nextInt(TABLE_PAGES);
+                // retry with the same id, so that it gets older rather than starve
+                while (true) {
+                    try {
+                        for (int p : pages) {
+                            HeapPageId pid = new HeapPageId(f.getId(), p);
+                            bp.getPage(tid, pid, Permissions.READ_WRITE);
+                            bp.unpinPage(tid, pid);
+                        }
+                        bp.transactionComplete(tid, true);
+                        commits.incrementAndGet();
+                        break;
+                    } catch (TransactionAbortedException e) {
+                        bp.transactionComplete(tid, false);
+                        aborts.incrementAndGet();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
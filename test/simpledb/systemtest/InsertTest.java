@@ -68,6 +68,63 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    /**
+     * A transaction inserting into a table does not wait for another one
+     * that has inserted into it and not committed yet, but uses another page.
+     */
+    @Test(timeout = 20000) public void testConcurrentInserters() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        Tuple a = new Tuple(Utility.getTupleDesc(2));
+        a.setField(0, new IntField(-1));
+        a.setField(1, new IntField(-1));
+        Tuple b = new Tuple(a.getTupleDesc());
+        b.setField(0, new IntField(-2));
+        b.setField(1, new IntField(-2));
+
+        bp.insertTuple(t1, f.getId(), a);
+        bp.insertTuple(t2, f.getId(), b);
+        assertEquals(new HeapPageId(f.getId(), 0), a.getRecordId().getPageId());
+        assertEquals(new HeapPageId(f.getId(), 1), b.getRecordId().getPageId());
+        bp.transactionComplete(t1, true);
+        bp.transactionComplete(t2, true);
+
+        tuples.add(SystemTestUtil.tupleToList(a));
+        tuples.add(SystemTestUtil.tupleToList(b));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Tuples appended in bulk are there once the transaction commits, and
+     * gone again if it aborts.
+     */
+    @Test public void testBulkAppend() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        ArrayList<Tuple> load = new ArrayList<Tuple>();
+        for (int i = 0; i < 5000; i++) {
+            Tuple t = new Tuple(Utility.getTupleDesc(2));
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(-i));
+            load.add(t);
+        }
+
+        TransactionId aborted = new TransactionId();
+        assertEquals(5000, f.bulkAppend(aborted, load.iterator()));
+        Database.getBufferPool().transactionComplete(aborted, false);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        TransactionId tid = new TransactionId();
+        assertEquals(5000, f.bulkAppend(tid, load.iterator()));
+        Database.getBufferPool().transactionComplete(tid, true);
+        for (Tuple t : load)
+            tuples.add(SystemTestUtil.tupleToList(t));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
@@ -0,0 +1,97 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Reads and updates a versioned HeapFile from several transactions, and
+ * checks that readers see the versions committed as of their first read,
+ * that a conflicting delete aborts, and that vacuum removes dead versions.
+ */
+public class MvccTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+
+    private static Tuple newTuple(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    private static ArrayList<Tuple> readAll(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        ArrayList<Tuple> all = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            all.add(it.next());
+        it.close();
+        return all;
+    }
+
+    @Test(timeout = 20000) public void testVersions() throws Exception {
+        File file = File.createTempFile("mvcc", ".dat");
+        file.deleteOnExit();
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        TransactionId loader = new TransactionId();
+        for (int i = 0; i < ROWS; i++) {
+            Tuple t = newTuple(i, i);
+            bp.insertTuple(loader, f.getId(), t);
+            tuples.add(SystemTestUtil.tupleToList(t));
+        }
+        bp.transactionComplete(loader, true);
+
+        TransactionId reader = new TransactionId();
+        ArrayList<Tuple> seen = readAll(f, reader);
+        assertEquals(ROWS, seen.size());
+
+        // the writer neither waits for the reader nor makes it wait
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, seen.get(0));
+        Tuple added = newTuple(-1, -1);
+        bp.insertTuple(writer, f.getId(), added);
+        SystemTestUtil.matchTuples(f, reader, tuples);
+        ArrayList<ArrayList<Integer>> after = new ArrayList<ArrayList<Integer>>(tuples);
+        after.remove(SystemTestUtil.tupleToList(seen.get(0)));
+        after.add(SystemTestUtil.tupleToList(added));
+        SystemTestUtil.matchTuples(f, writer, after);
+        bp.transactionComplete(writer, true);
+
+        // the reader keeps its view, later readers see the commit
+        SystemTestUtil.matchTuples(f, reader, tuples);
+        SystemTestUtil.matchTuples(f, after);
+
+        // deleting a version deleted by a commit the reader cannot see
+        try {
+            bp.deleteTuple(reader, seen.get(0));
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        bp.transactionComplete(reader, false);
+
+        HeapPage pg = (HeapPage) bp.getVersionedPage(null, new HeapPageId(f.getId(), 0));
+        int empty = pg.getNumEmptySlots();
+        assertEquals(1, bp.vacuum());
+        assertEquals(empty + 1, pg.getNumEmptySlots());
+        assertEquals(0, bp.vacuum());
+
+        // the stamps are on disk
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, after);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MvccTest.class);
+    }
+}
@@ -0,0 +1,98 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Updates a table larger than the buffer pool in a single transaction,
+ * which only works if dirty pages of running transactions can be stolen,
+ * and checks that abort undoes the stolen writes and that NO-FORCE
+ * commits reach disk through the page cleaner.
+ */
+public class PageCleanerTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 4;
+    private static final int TABLE_PAGES = 10;
+
+    /** Delete one tuple from every page of f */
+    private static int deleteOnePerPage(HeapFile f, Transaction t) throws Exception {
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        ss.open();
+        int lastPage = -1;
+        while (ss.hasNext()) {
+            Tuple tup = ss.next();
+            int pgNo = tup.getRecordId().getPageId().getPageNumber();
+            if (pgNo != lastPage) {
+                victims.add(tup);
+                lastPage = pgNo;
+            }
+        }
+        ss.close();
+        for (Tuple tup : victims)
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+        return victims.size();
+    }
+
+    private static int count(HeapFile f) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int n = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        t.commit();
+        return n;
+    }
+
+    @Test public void testAbortUndoesStolenPages() throws Exception {
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, 1);
+        bp.setSteal(true);
+        int before = count(f);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(TABLE_PAGES, deleteOnePerPage(f, t));
+        t.abort();
+
+        // nothing may be left of the deletes, in memory or on disk
+        assertEquals(before, count(f));
+        Database.resetBufferPool(BUFFER_PAGES, 1);
+        assertEquals(before, count(f));
+    }
+
+    @Test public void testNoForceCommit() throws Exception {
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, 1);
+        bp.setSteal(true);
+        bp.setNoForce(true);
+        bp.setPageCleanerInterval(10);
+        int before = count(f);
+
+        Transaction t = new Transaction();
+        t.start();
+        deleteOnePerPage(f, t);
+        t.commit();
+        assertEquals(before - TABLE_PAGES, count(f));
+
+        // the cleaner writes the committed pages back on its own
+        Thread.sleep(200);
+        bp.setPageCleanerInterval(0);
+        Database.resetBufferPool(BUFFER_PAGES, 1);
+        assertEquals(before - TABLE_PAGES, count(f));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PageCleanerTest.class);
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Scans and updates a table through a buffer pool split into several
+ * partitions, checking that the pool as a whole stays within its size.
+ */
+public class PartitionedBufferPoolTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 8;
+    private static final int PARTITIONS = 4;
+
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*20, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, PARTITIONS);
+        assertEquals(PARTITIONS, bp.getNumPartitions());
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(SystemTestUtil.occupancy(bp) <= BUFFER_PAGES);
+        assertTrue(SystemTestUtil.occupancy(bp) > 0);
+    }
+
+    /**
+     * Dirty pages cannot be evicted, so once a partition holds nothing but
+     * dirty pages, misses routed to it have to take room from the others.
+     */
+    @Test public void testDirtyPages() throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        final int dirty = BUFFER_PAGES - 2;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*20, null, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, PARTITIONS);
+
+        // pick one tuple on each of the first few pages
+        TransactionId tid = new TransactionId();
+        Tuple[] victims = new Tuple[dirty];
+        SeqScan ss = new SeqScan(tid, f.getId(), "");
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            int pgNo = t.getRecordId().getPageId().getPageNumber();
+            if (pgNo < dirty && victims[pgNo] == null)
+                victims[pgNo] = t;
+        }
+        ss.close();
+
+        for (Tuple t : victims)
+            bp.deleteTuple(tid, t);
+
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        bp.transactionComplete(tid);
+        assertEquals(512*20 - dirty, count);
+        assertTrue(SystemTestUtil.occupancy(bp) <= BUFFER_PAGES);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PartitionedBufferPoolTest.class);
+    }
+}
@@ -0,0 +1,58 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Fills a small buffer pool with pinned pages, and checks that none of
+ * them is evicted until it is unpinned.
+ */
+public class PinTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 3;
+
+    @Test public void testPinnedPagesAreNotEvicted() throws Exception {
+        SystemTestUtil.CountingHeapFile f = SystemTestUtil.createCountingTable(2, 6, null);
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES, 1);
+        bp.setReadAhead(0);
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < BUFFER_PAGES; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        HeapPageId first = new HeapPageId(f.getId(), 0);
+        assertTrue(bp.isPinned(first));
+
+        // every frame holds a pinned page
+        try {
+            bp.getPage(tid, new HeapPageId(f.getId(), BUFFER_PAGES), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        // and none of them was dropped to try
+        int reads = f.readCount;
+        for (int i = 0; i < BUFFER_PAGES; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        assertEquals(reads, f.readCount);
+        for (int i = 0; i < BUFFER_PAGES; i++)
+            bp.unpinPage(tid, new HeapPageId(f.getId(), i));
+
+        // once unpinned, the first page makes room
+        bp.unpinPage(tid, first);
+        assertFalse(bp.isPinned(first));
+        bp.getPage(tid, new HeapPageId(f.getId(), BUFFER_PAGES), Permissions.READ_ONLY);
+        assertEquals(reads + 1, f.readCount);
+
+        // completing the transaction drops the rest of its pins
+        bp.transactionComplete(tid);
+        for (int i = 0; i <= BUFFER_PAGES; i++)
+            assertFalse(bp.isPinned(new HeapPageId(f.getId(), i)));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PinTest.class);
+    }
+}
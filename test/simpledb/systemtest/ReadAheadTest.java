@@ -0,0 +1,59 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Reads the first pages of a table in order and checks that the pages
+ * after them are read ahead into the pool, but only when read-ahead is on
+ * and only into free frames.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 20;
+
+    /** Read the first n pages of f in order and wait for the read-ahead */
+    private static void readPages(BufferPool bp, HeapFile f, int n) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < n; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        assertTrue(bp.awaitReadAhead(10000));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void testSequentialReadsPrefetch() throws Exception {
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, null);
+        BufferPool bp = Database.resetBufferPool(50);
+        readPages(bp, f, 3);
+        // read-ahead starts at the second page, and the third is too early
+        // to start another batch
+        assertEquals(2 + BufferPool.DEFAULT_READ_AHEAD, SystemTestUtil.occupancy(bp));
+    }
+
+    @Test public void testDisabled() throws Exception {
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, null);
+        BufferPool bp = Database.resetBufferPool(50);
+        bp.setReadAhead(0);
+        readPages(bp, f, 3);
+        assertEquals(3, SystemTestUtil.occupancy(bp));
+    }
+
+    @Test public void testOnlyFreeFrames() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, tuples);
+        BufferPool bp = Database.resetBufferPool(5);
+        readPages(bp, f, 3);
+        assertEquals(5, SystemTestUtil.occupancy(bp));
+        // the scan still sees every page
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Updates different tuples of one page from two transactions under record
+ * locking, and checks that neither waits for the other and that aborting
+ * one undoes only its own changes.
+ */
+public class RecordLockTest extends SimpleDbTestBase {
+
+    private static ArrayList<Tuple> readAll(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        ArrayList<Tuple> all = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            all.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return all;
+    }
+
+    private static Tuple newTuple(int a, int b) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    @Test public void testConcurrentUpdatesOnOnePage() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(true);
+        ArrayList<Tuple> all = readAll(f);
+
+        // both transactions would block each other here under page locks
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.deleteTuple(t1, all.get(0));
+        bp.deleteTuple(t2, all.get(1));
+        Tuple added1 = newTuple(-1, -1);
+        Tuple added2 = newTuple(-2, -2);
+        bp.insertTuple(t1, f.getId(), added1);
+        bp.insertTuple(t2, f.getId(), added2);
+        assertEquals(1, f.numPages());
+        assertEquals(new HeapPageId(f.getId(), 0), added1.getRecordId().getPageId());
+        // the slot t2 freed is still locked by t2, so t1 did not take it
+        assertFalse(added1.getRecordId().equals(all.get(1).getRecordId()));
+        assertTrue(bp.holdsLock(t1, added1.getRecordId().getPageId()));
+        assertTrue(bp.holdsLock(t2, added2.getRecordId().getPageId()));
+
+        bp.transactionComplete(t2, false);
+        bp.transactionComplete(t1, true);
+
+        tuples.remove(SystemTestUtil.tupleToList(all.get(0)));
+        tuples.add(SystemTestUtil.tupleToList(added1));
+        SystemTestUtil.matchTuples(f, tuples);
+
+        // and the same once the page has been read back from disk
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecordLockTest.class);
+    }
+}
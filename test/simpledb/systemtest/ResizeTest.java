@@ -0,0 +1,67 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Grows and shrinks a buffer pool while pages are cached, and checks that
+ * pages which cannot be evicted at once are evicted by later misses.
+ */
+public class ResizeTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 20;
+
+    private static void readPages(BufferPool bp, TransactionId tid, HeapFile f, int n) throws Exception {
+        for (int i = 0; i < n; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+    }
+
+    @Test public void testGrowAndShrink() throws Exception {
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, null);
+        BufferPool bp = Database.resetBufferPool(10, 1);
+        bp.setReadAhead(0);
+
+        bp.resize(TABLE_PAGES);
+        assertEquals(TABLE_PAGES, bp.getCapacity());
+        TransactionId tid = new TransactionId();
+        readPages(bp, tid, f, TABLE_PAGES);
+        assertEquals(TABLE_PAGES, SystemTestUtil.occupancy(bp));
+
+        // every page is pinned, so none can go yet
+        bp.resize(5);
+        assertEquals(TABLE_PAGES, SystemTestUtil.occupancy(bp));
+        bp.transactionComplete(tid);
+
+        // the next miss makes the pool fit before reading its page
+        HeapFile g = SystemTestUtil.createTable(TABLE_PAGES, null);
+        tid = new TransactionId();
+        readPages(bp, tid, g, 1);
+        assertEquals(5, SystemTestUtil.occupancy(bp));
+        bp.transactionComplete(tid);
+
+        // with nothing pinned, shrinking evicts at once
+        bp.resize(2);
+        assertEquals(2, SystemTestUtil.occupancy(bp));
+    }
+
+    /** Shrinking below the working set of a scan does not lose tuples */
+    @Test public void testScanAfterShrink() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createTable(TABLE_PAGES, tuples);
+        BufferPool bp = Database.resetBufferPool(50);
+        SystemTestUtil.matchTuples(f, tuples);
+        bp.resize(3);
+        assertTrue(SystemTestUtil.occupancy(bp) <= 3);
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(SystemTestUtil.occupancy(bp) <= 3);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ResizeTest.class);
+    }
+}
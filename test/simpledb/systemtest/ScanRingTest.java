@@ -0,0 +1,55 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Scans a table much larger than the buffer pool while the pages of a
+ * small table are cached, and checks that the scan leaves them cached.
+ */
+public class ScanRingTest extends SimpleDbTestBase {
+    private static final int BUFFER_PAGES = 40;
+    private static final int HOT_PAGES = 5;
+    private static final int BIG_PAGES = 100;
+
+    /**
+     * Cache the hot table, scan the big one, then scan the hot table again
+     * @return the number of hot pages read by the second scan
+     */
+    private int hotPagesReread(boolean useRing) throws Exception {
+        ArrayList<ArrayList<Integer>> hotTuples = new ArrayList<ArrayList<Integer>>();
+        SystemTestUtil.CountingHeapFile hot = SystemTestUtil.createCountingTable(1, HOT_PAGES, hotTuples);
+        ArrayList<ArrayList<Integer>> bigTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile big = SystemTestUtil.createRandomHeapFile(1, BIG_PAGES * SystemTestUtil.rowsPerPage(1), null, bigTuples);
+
+        BufferPool bp = Database.resetBufferPool(BUFFER_PAGES);
+        if (!useRing)
+            bp.setScanRingThreshold(Double.MAX_VALUE);
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        assertEquals(HOT_PAGES, hot.readCount);
+
+        SystemTestUtil.matchTuples(big, bigTuples);
+        hot.readCount = 0;
+        SystemTestUtil.matchTuples(hot, hotTuples);
+        return hot.readCount;
+    }
+
+    @Test public void testHotPagesSurviveScan() throws Exception {
+        assertEquals(0, hotPagesReread(true));
+    }
+
+    /** Without a ring the same scan flushes the hot pages out */
+    @Test public void testWithoutRing() throws Exception {
+        assertTrue(hotPagesReread(false) > 0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanRingTest.class);
+    }
+}
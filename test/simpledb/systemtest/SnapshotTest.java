@@ -0,0 +1,108 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Reads a table from snapshot transactions while another transaction
+ * updates it, and checks that each snapshot sees the table as it was
+ * committed when the snapshot began, without waiting for the writer.
+ */
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private static ArrayList<Tuple> readAll(HeapFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        ArrayList<Tuple> all = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            all.add(it.next());
+        it.close();
+        return all;
+    }
+
+    @Test(timeout = 20000) public void testSnapshotIgnoresWriter() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId reader = new TransactionId();
+        ArrayList<Tuple> all = readAll(f, reader);
+        bp.transactionComplete(reader);
+
+        // the writer holds page 0 exclusively from here on
+        TransactionId writer = new TransactionId();
+        bp.deleteTuple(writer, all.get(0));
+
+        TransactionId before = new TransactionId();
+        bp.beginSnapshot(before);
+        SystemTestUtil.matchTuples(f, before, tuples);
+        try {
+            bp.getPage(before, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.transactionComplete(writer, true);
+        // still the table as it was when the snapshot began
+        SystemTestUtil.matchTuples(f, before, tuples);
+
+        ArrayList<ArrayList<Integer>> after = new ArrayList<ArrayList<Integer>>(tuples);
+        after.remove(SystemTestUtil.tupleToList(all.get(0)));
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        SystemTestUtil.matchTuples(f, later, after);
+
+        bp.transactionComplete(before);
+        bp.transactionComplete(later);
+        assertEquals(0L, (long) Database.getMetrics().getValue("simpledb_bufferpool_page_versions"));
+    }
+
+    /**
+     * With STEAL, a page the writer has changed can be written back and
+     * evicted before the writer commits; a snapshot that reads it from disk
+     * again must still see it as it was committed.
+     */
+    @Test(timeout = 20000) public void testSnapshotOfStolenPage() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createTable(3, tuples);
+        BufferPool bp = Database.resetBufferPool(2, 1);
+        bp.setReadAhead(0);
+        bp.setSteal(true);
+        HeapPageId first = new HeapPageId(f.getId(), 0);
+
+        TransactionId writer = new TransactionId();
+        Tuple victim = readAll(f, writer).get(0);
+        assertEquals(first, victim.getRecordId().getPageId());
+        bp.deleteTuple(writer, victim);
+        bp.cleanPages();
+
+        // push the stolen page out of the pool
+        TransactionId other = new TransactionId();
+        for (int i = 1; i < 3; i++)
+            bp.getPage(other, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(other);
+        assertFalse(bp.getResidentPages().contains(first));
+
+        TransactionId snapshot = new TransactionId();
+        bp.beginSnapshot(snapshot);
+        SystemTestUtil.matchTuples(f, snapshot, tuples);
+
+        // the page is not in the pool when the writer commits either
+        bp.transactionComplete(writer, true);
+        SystemTestUtil.matchTuples(f, snapshot, tuples);
+        bp.transactionComplete(snapshot);
+
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
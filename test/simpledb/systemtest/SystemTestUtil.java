@@ -146,6 +146,55 @@ public class SystemTestUtil {
         }
     }
 
+    /** Returns the number of tuples of the given number of int columns that fill a page. */
+    public static int rowsPerPage(int columns) {
+        return BufferPool.getPageSize() * 8 / (columns * Type.INT_TYPE.getLen() * 8 + 1);
+    }
+
+    /**
+     * Creates a table of two int columns with random values that fills
+     * exactly the given number of pages.
+     */
+    public static HeapFile createTable(int pages, ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        return createRandomHeapFile(2, pages * rowsPerPage(2), null, tuples);
+    }
+
+    /** A HeapFile that counts the number of readPage operations. */
+    public static class CountingHeapFile extends HeapFile {
+        public volatile int readCount = 0;
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Creates a table of the given number of int columns with random values
+     * that fills exactly the given number of pages, and counts its reads.
+     */
+    public static CountingHeapFile createCountingTable(int columns, int pages,
+            ArrayList<ArrayList<Integer>> tuples) throws IOException {
+        File file = createRandomHeapFileUnopened(columns, pages * rowsPerPage(columns), 1000, null, tuples);
+        CountingHeapFile f = new CountingHeapFile(file, Utility.getTupleDesc(columns));
+        Database.getCatalog().addTable(f, getUUID());
+        return f;
+    }
+
+    /** Returns the number of pages cached in bp, over all its partitions. */
+    public static int occupancy(BufferPool bp) {
+        int total = 0;
+        for (int n : bp.getPartitionOccupancy())
+            total += n;
+        return total;
+    }
+
     /**
      * Returns number of bytes of RAM used by JVM after calling System.gc many times.
      * @return amount of RAM (in bytes) used by JVM
@@ -0,0 +1,59 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+/**
+ * Saves the resident pages of a buffer pool, replaces the pool, and checks
+ * that a warm start reads the most recently used pages back in.
+ */
+public class WarmStartTest extends SimpleDbTestBase {
+    private static final int TABLE_PAGES = 20;
+
+    private static BufferPool newPool(int pages) {
+        BufferPool bp = Database.resetBufferPool(pages, 1);
+        bp.setReadAhead(0);
+        bp.setPolicy(BufferPool.LRU);
+        return bp;
+    }
+
+    /** Read the given pages of f in order in one transaction */
+    private static void readPages(BufferPool bp, HeapFile f, int... pages) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i : pages)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void testWarmStart() throws Exception {
+        SystemTestUtil.CountingHeapFile f = SystemTestUtil.createCountingTable(2, TABLE_PAGES, null);
+        BufferPool bp = newPool(10);
+        readPages(bp, f, 15, 3, 7);
+        assertEquals(Arrays.asList(new HeapPageId(f.getId(), 7), new HeapPageId(f.getId(), 3),
+                new HeapPageId(f.getId(), 15)), bp.getResidentPages());
+
+        File saved = File.createTempFile("warm", ".pages");
+        saved.deleteOnExit();
+        bp.saveResidentPages(saved);
+
+        // a pool with room for two only gets the two most recently used
+        bp = newPool(2);
+        bp.warmStart(saved).get();
+        f.readCount = 0;
+        readPages(bp, f, 7, 3);
+        assertEquals(0, f.readCount);
+        readPages(bp, f, 15);
+        assertEquals(1, f.readCount);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(WarmStartTest.class);
+    }
+}